@@ -0,0 +1,199 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A Bloom filter over flake names, used to answer that a flake definitely
+ * does not exist without touching the metadata database. The bits are kept in
+ * an {@link AtomicLongArray} so that a name added by one thread is seen by all
+ * other threads without any locking.
+ * 
+ * @author sangupta
+ *
+ */
+public class FlakeBloomFilter {
+	
+	/**
+	 * The hash function used to derive bit positions
+	 */
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+	
+	/**
+	 * The bits of the filter
+	 */
+	private final AtomicLongArray bits;
+	
+	/**
+	 * Total number of bits in the filter
+	 */
+	private final long numBits;
+	
+	/**
+	 * Number of bits set per name
+	 */
+	private final int numHashes;
+	
+	/**
+	 * Create a filter sized for the given number of names and false positive rate.
+	 * 
+	 * @param expectedInsertions
+	 * @param falsePositiveRate
+	 */
+	public FlakeBloomFilter(long expectedInsertions, double falsePositiveRate) {
+		if(falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+		}
+		
+		expectedInsertions = Math.max(expectedInsertions, 1);
+		long numBits = (long) (-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		
+		this.bits = new AtomicLongArray((int) Math.min((numBits + 63) / 64, Integer.MAX_VALUE));
+		this.numBits = this.bits.length() * 64l;
+		this.numHashes = Math.max(1, (int) Math.round((double) this.numBits / expectedInsertions * Math.log(2)));
+	}
+	
+	/**
+	 * Constructor used when reading the filter back from disk.
+	 * 
+	 * @param words
+	 * @param numHashes
+	 */
+	private FlakeBloomFilter(long[] words, int numHashes) {
+		this.bits = new AtomicLongArray(words);
+		this.numBits = words.length * 64l;
+		this.numHashes = numHashes;
+	}
+	
+	/**
+	 * Add the given key to the filter.
+	 * 
+	 * @param key
+	 */
+	public void put(byte[] key) {
+		ByteBuffer hash = hash(key);
+		long hash1 = hash.getLong();
+		long hash2 = hash.getLong();
+		
+		for(int index = 0; index < this.numHashes; index++) {
+			long bit = ((hash1 + index * hash2) & Long.MAX_VALUE) % this.numBits;
+			int word = (int) (bit >>> 6);
+			long mask = 1l << bit;
+			
+			long value;
+			do {
+				value = this.bits.get(word);
+				if((value & mask) != 0) {
+					break;
+				}
+			} while(!this.bits.compareAndSet(word, value, value | mask));
+		}
+	}
+	
+	/**
+	 * Check if the given key may have been added to the filter. A return value
+	 * of <code>false</code> means that the key has definitely never been added.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean mightContain(byte[] key) {
+		ByteBuffer hash = hash(key);
+		long hash1 = hash.getLong();
+		long hash2 = hash.getLong();
+		
+		for(int index = 0; index < this.numHashes; index++) {
+			long bit = ((hash1 + index * hash2) & Long.MAX_VALUE) % this.numBits;
+			if((this.bits.get((int) (bit >>> 6)) & (1l << bit)) == 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Write the filter to the given file.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(File file) throws IOException {
+		DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			stream.writeInt(this.numHashes);
+			stream.writeInt(this.bits.length());
+			for(int index = 0; index < this.bits.length(); index++) {
+				stream.writeLong(this.bits.get(index));
+			}
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Read a filter previously written using {@link #writeTo(File)}.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static FlakeBloomFilter readFrom(File file) throws IOException {
+		DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int numHashes = stream.readInt();
+			long[] words = new long[stream.readInt()];
+			for(int index = 0; index < words.length; index++) {
+				words[index] = stream.readLong();
+			}
+			
+			return new FlakeBloomFilter(words, numHashes);
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Compute the 128-bit hash of the key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private static ByteBuffer hash(byte[] key) {
+		return ByteBuffer.wrap(HASH_FUNCTION.hashBytes(key).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+}
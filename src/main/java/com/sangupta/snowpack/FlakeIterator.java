@@ -0,0 +1,252 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.iq80.leveldb.DBIterator;
+
+import com.google.common.collect.Iterators;
+import com.google.common.primitives.UnsignedBytes;
+
+import com.sangupta.snowpack.domain.FlakeMetadata;
+
+/**
+ * A lazy iterator over the metadata of all flakes whose name starts with a
+ * given prefix, in the byte order of their names. Entries are read from the
+ * database as the iterator advances, so the result set is never held in
+ * memory. When the metadata is sharded, the sorted entries of all shards are
+ * merged on the fly. The iterator must be closed once done with - it closes
+ * itself when exhausted.
+ * 
+ * Listing can be paged: {@link #getPageToken()} returns a token that can be
+ * passed to {@link Snowpack#listFlakes(String, String)} to continue right
+ * after the last flake returned.
+ * 
+ * @author sangupta
+ *
+ */
+public class FlakeIterator implements Iterator<FlakeMetadata>, Closeable {
+	
+	/**
+	 * Orders entries as LevelDB orders its keys - by the unsigned bytes
+	 */
+	private static final Comparator<Entry<byte[], byte[]>> KEY_ORDER = new Comparator<Entry<byte[], byte[]>>() {
+		
+		@Override
+		public int compare(Entry<byte[], byte[]> first, Entry<byte[], byte[]> second) {
+			return UnsignedBytes.lexicographicalComparator().compare(first.getKey(), second.getKey());
+		}
+		
+	};
+	
+	/**
+	 * The underlying database iterators, one per shard
+	 */
+	private final List<DBIterator> iterators;
+	
+	/**
+	 * The entries of all iterators, in key order
+	 */
+	private final Iterator<Entry<byte[], byte[]>> entries;
+	
+	/**
+	 * The prefix all returned names start with
+	 */
+	private final byte[] prefix;
+	
+	/**
+	 * The next entry to be returned, if already read
+	 */
+	private FlakeMetadata next;
+	
+	/**
+	 * Name of the last flake returned - the page token
+	 */
+	private String lastName;
+	
+	/**
+	 * Whether the underlying iterator has been closed
+	 */
+	private boolean closed;
+	
+	/**
+	 * Create an iterator over the given database iterators.
+	 * 
+	 * @param iterators
+	 * @param prefix
+	 *            the prefix of the names to list, may be empty
+	 * @param pageToken
+	 *            the token returned by an earlier listing to continue from, or
+	 *            <code>null</code> to start at the beginning
+	 */
+	public FlakeIterator(List<DBIterator> iterators, String prefix, String pageToken) {
+		this.iterators = iterators;
+		this.prefix = prefix == null ? new byte[0] : prefix.getBytes();
+		this.lastName = pageToken;
+		
+		// names sort after their prefix - start at whichever comes later
+		byte[] start = this.prefix;
+		if(pageToken != null) {
+			byte[] token = pageToken.getBytes();
+			if(UnsignedBytes.lexicographicalComparator().compare(token, start) > 0) {
+				start = token;
+			}
+		}
+		
+		for(DBIterator iterator : iterators) {
+			if(start.length == 0) {
+				iterator.seekToFirst();
+			} else {
+				iterator.seek(start);
+			}
+		}
+		
+		this.entries = merge(iterators);
+	}
+	
+	/**
+	 * Check if there are more flakes to list.
+	 * 
+	 */
+	@Override
+	public boolean hasNext() {
+		if(this.next != null) {
+			return true;
+		}
+		
+		if(this.closed) {
+			return false;
+		}
+		
+		while(this.entries.hasNext()) {
+			Entry<byte[], byte[]> entry = this.entries.next();
+			byte[] key = entry.getKey();
+			if(!startsWith(key, this.prefix)) {
+				break;
+			}
+			
+			String name = new String(key);
+			
+			// the page token itself was returned in the earlier page
+			if(name.equals(this.lastName)) {
+				continue;
+			}
+			
+			this.next = new FlakeMetadata(name, entry.getValue());
+			return true;
+		}
+		
+		close();
+		return false;
+	}
+	
+	/**
+	 * Return the metadata of the next flake.
+	 * 
+	 */
+	@Override
+	public FlakeMetadata next() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		
+		FlakeMetadata flakeMetadata = this.next;
+		this.next = null;
+		this.lastName = flakeMetadata.flakeName;
+		return flakeMetadata;
+	}
+	
+	/**
+	 * Flakes cannot be removed during listing.
+	 * 
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Flakes cannot be removed while listing");
+	}
+	
+	/**
+	 * Return the token to continue listing after the last flake returned, or
+	 * the token this listing was started with if no flake has been returned.
+	 * 
+	 * @return
+	 */
+	public String getPageToken() {
+		return this.lastName;
+	}
+	
+	/**
+	 * Close the underlying database iterators.
+	 * 
+	 */
+	@Override
+	public void close() {
+		if(this.closed) {
+			return;
+		}
+		
+		this.closed = true;
+		for(DBIterator iterator : this.iterators) {
+			try {
+				iterator.close();
+			} catch (IOException e) {
+				// eat up
+			}
+		}
+	}
+	
+	private static boolean startsWith(byte[] key, byte[] prefix) {
+		if(key.length < prefix.length) {
+			return false;
+		}
+		
+		for(int index = 0; index < prefix.length; index++) {
+			if(key[index] != prefix[index]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Return the given iterators merged in key order.
+	 * 
+	 * @param iterators
+	 * @return
+	 */
+	static Iterator<Entry<byte[], byte[]>> merge(List<DBIterator> iterators) {
+		if(iterators.size() == 1) {
+			return iterators.get(0);
+		}
+		
+		return Iterators.mergeSorted(iterators, KEY_ORDER);
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+/**
+ * A count-min sketch that estimates how often a key has been accessed
+ * recently. Counters saturate at 15 and are halved once enough increments
+ * have been recorded, so that the sketch ages out old popularity. Used by
+ * {@link SnowpackCache} to decide whether a flake is worth admitting.
+ * 
+ * @author sangupta
+ *
+ */
+public class FrequencySketch {
+	
+	/**
+	 * Number of rows in the sketch
+	 */
+	private static final int DEPTH = 4;
+	
+	/**
+	 * Maximum value a counter can reach
+	 */
+	private static final int MAX_COUNT = 15;
+	
+	/**
+	 * Seeds used to derive a different index for each row
+	 */
+	private static final int[] SEEDS = { 0x97cb3127, 0xb7a6f3d1, 0x5ae1f4b7, 0xe9a1b3c5 };
+	
+	/**
+	 * The counters - one row after another
+	 */
+	private final byte[] counters;
+	
+	/**
+	 * Mask to compute the index in a row
+	 */
+	private final int mask;
+	
+	/**
+	 * Number of increments after which all counters are halved
+	 */
+	private final int sampleSize;
+	
+	/**
+	 * Number of increments since the last reset
+	 */
+	private int size;
+	
+	/**
+	 * Create a sketch sized for the given number of entries.
+	 * 
+	 * @param expectedEntries
+	 */
+	public FrequencySketch(int expectedEntries) {
+		expectedEntries = Math.max(expectedEntries, 16);
+		
+		// keep the rows wide compared to the sample so that keys seen
+		// only once rarely collide into a higher estimate
+		int width = Integer.highestOneBit(expectedEntries - 1) << 5;
+		
+		this.counters = new byte[DEPTH * width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * expectedEntries;
+	}
+	
+	/**
+	 * Record one access of the given key.
+	 * 
+	 * @param key
+	 */
+	public synchronized void increment(Object key) {
+		int hash = spread(key.hashCode());
+		
+		boolean added = false;
+		for(int row = 0; row < DEPTH; row++) {
+			int index = indexOf(hash, row);
+			if(this.counters[index] < MAX_COUNT) {
+				this.counters[index]++;
+				added = true;
+			}
+		}
+		
+		if(added && ++this.size >= this.sampleSize) {
+			reset();
+		}
+	}
+	
+	/**
+	 * Return the estimated number of recent accesses of the given key.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public synchronized int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		
+		int frequency = MAX_COUNT;
+		for(int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, this.counters[indexOf(hash, row)]);
+		}
+		
+		return frequency;
+	}
+	
+	/**
+	 * Halve all counters so that older accesses count for less.
+	 * 
+	 */
+	private void reset() {
+		for(int index = 0; index < this.counters.length; index++) {
+			this.counters[index] = (byte) (this.counters[index] >>> 1);
+		}
+		
+		this.size = this.size >>> 1;
+	}
+	
+	/**
+	 * Compute the index of the counter for the given hash in the given row.
+	 * 
+	 * @param hash
+	 * @param row
+	 * @return
+	 */
+	private int indexOf(int hash, int row) {
+		int h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 16;
+		return row * (this.mask + 1) + (h & this.mask);
+	}
+	
+	/**
+	 * Apply a supplemental hash function to defend against poor hash codes.
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	private static int spread(int hash) {
+		hash ^= (hash >>> 17);
+		hash *= 0xed5ad4bb;
+		hash ^= (hash >>> 11);
+		hash *= 0xac4c1b51;
+		hash ^= (hash >>> 15);
+		return hash;
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An append-only log of the flakes whose metadata changed after the last
+ * {@link MetadataSnapshot} was taken. A name is appended before its metadata
+ * is written to the database, so the journal never misses a change that the
+ * database has. The journal is split into numbered files - a new file is
+ * started whenever a snapshot is taken, and the older files are deleted once
+ * the snapshot is complete.
+ * 
+ * @author sangupta
+ *
+ */
+public class MetadataJournal implements Closeable {
+	
+	private static final String PREFIX = "journal-";
+	
+	private static final String SUFFIX = ".log";
+	
+	/**
+	 * The directory holding the journal files
+	 */
+	private final File directory;
+	
+	/**
+	 * Number of the file being appended to
+	 */
+	private volatile int current;
+	
+	/**
+	 * The file being appended to
+	 */
+	private volatile FileChannel channel;
+	
+	/**
+	 * Open the journal in the given directory. The names in all existing
+	 * journal files are added to the given set, and a new file is started.
+	 * 
+	 * @param directory
+	 * @param names
+	 * @throws IOException
+	 */
+	public MetadataJournal(File directory, Set<String> names) throws IOException {
+		this.directory = directory;
+		
+		int last = -1;
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				int number = numberOf(file);
+				if(number < 0) {
+					continue;
+				}
+				
+				readNames(file, names);
+				last = Math.max(last, number);
+			}
+		}
+		
+		this.current = last + 1;
+		this.channel = open(this.current);
+	}
+	
+	/**
+	 * Append the given names to the journal.
+	 * 
+	 * @param names
+	 * @throws IOException
+	 */
+	public void append(Collection<String> names) throws IOException {
+		int size = 0;
+		byte[][] keys = new byte[names.size()][];
+		int index = 0;
+		for(String name : names) {
+			keys[index] = name.getBytes();
+			size += 4 + keys[index].length;
+			index++;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for(byte[] key : keys) {
+			buffer.putInt(key.length);
+			buffer.put(key);
+		}
+		buffer.flip();
+		
+		// the channel appends the whole buffer in one go
+		FileChannel channel = this.channel;
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Force the journal to disk.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		this.channel.force(false);
+	}
+	
+	/**
+	 * Start a new journal file. No append may be in progress.
+	 * 
+	 * @return the number of the last file that was closed
+	 * @throws IOException
+	 */
+	public int rotate() throws IOException {
+		FileChannel previous = this.channel;
+		this.channel = open(this.current + 1);
+		this.current++;
+		
+		previous.close();
+		return this.current - 1;
+	}
+	
+	/**
+	 * Delete all journal files up to the given number, once a snapshot that
+	 * covers them is complete.
+	 * 
+	 * @param number
+	 */
+	public void deleteUpTo(int number) {
+		File[] files = this.directory.listFiles();
+		if(files == null) {
+			return;
+		}
+		
+		for(File file : files) {
+			int fileNumber = numberOf(file);
+			if(fileNumber >= 0 && fileNumber <= number) {
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Close the journal.
+	 * 
+	 */
+	@Override
+	public void close() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private FileChannel open(int number) throws IOException {
+		return new FileOutputStream(new File(this.directory, PREFIX + number + SUFFIX), true).getChannel();
+	}
+	
+	/**
+	 * Read all names in the given journal file. A partial entry at the end,
+	 * left by a crash during an append, is ignored.
+	 */
+	private static void readNames(File file, Set<String> names) throws IOException {
+		byte[] bytes;
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			bytes = IOUtils.toByteArray(stream);
+		} finally {
+			stream.close();
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.remaining() >= 4) {
+			int length = buffer.getInt();
+			if(length < 0 || length > buffer.remaining()) {
+				break;
+			}
+			
+			byte[] name = new byte[length];
+			buffer.get(name);
+			names.add(new String(name));
+		}
+	}
+	
+	private static int numberOf(File file) {
+		String name = file.getName();
+		if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+			return -1;
+		}
+		
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+}
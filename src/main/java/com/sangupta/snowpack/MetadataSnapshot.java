@@ -0,0 +1,360 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.sangupta.snowpack.domain.FlakeMetadata;
+
+/**
+ * A read-only snapshot of the flake metadata, held in a memory-mapped file so
+ * that it can answer lookups as soon as it is opened. The file holds all
+ * entries sorted by the bytes of the flake name, in blocks of
+ * {@link #FENCE_INTERVAL} entries. The first name of every block is kept in a
+ * sparse fence index at the end of the file, which is read onto the heap - a
+ * lookup is a binary search over the fences followed by a scan of one block.
+ * 
+ * The file layout is:
+ * 
+ * <pre>
+ * [int magic][int version]
+ * entries: [int nameLength][name][byte valueLength][value] ...
+ * fences: [int nameLength][name][long entryOffset] ...
+ * [long fenceOffset][int fenceCount][long entryCount][int magic]
+ * </pre>
+ * 
+ * @author sangupta
+ *
+ */
+public class MetadataSnapshot {
+	
+	/**
+	 * Marker at the start and end of the file
+	 */
+	private static final int MAGIC = 0x534e5053; // SNPS
+	
+	private static final int VERSION = 1;
+	
+	/**
+	 * Size of the trailer at the end of the file
+	 */
+	private static final int TRAILER_SIZE = 8 + 4 + 8 + 4;
+	
+	/**
+	 * Number of entries in a block
+	 */
+	private static final int FENCE_INTERVAL = 64;
+	
+	/**
+	 * The entries are mapped in regions of at most this size - each region
+	 * holds whole blocks
+	 */
+	private static final long MAX_REGION_SIZE = 1024l * 1024l * 1024l;
+	
+	/**
+	 * First flake name of every block
+	 */
+	private final byte[][] fenceNames;
+	
+	/**
+	 * Offset of every block within its region
+	 */
+	private final int[] fenceOffsets;
+	
+	/**
+	 * Region that holds every block
+	 */
+	private final int[] fenceRegions;
+	
+	/**
+	 * End of every block within its region
+	 */
+	private final int[] fenceEnds;
+	
+	/**
+	 * The mapped regions of entries
+	 */
+	private final MappedByteBuffer[] regions;
+	
+	/**
+	 * Number of entries in the snapshot
+	 */
+	private final long entryCount;
+	
+	/**
+	 * Map the snapshot in the given file.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 *             if the file is not a complete snapshot
+	 */
+	public MetadataSnapshot(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size < 8 + TRAILER_SIZE) {
+				throw new IOException("Metadata snapshot is truncated");
+			}
+			
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			readFully(channel, trailer, size - TRAILER_SIZE);
+			long fenceOffset = trailer.getLong();
+			int fenceCount = trailer.getInt();
+			this.entryCount = trailer.getLong();
+			if(trailer.getInt() != MAGIC || fenceOffset < 8 || fenceOffset > size - TRAILER_SIZE) {
+				throw new IOException("Metadata snapshot is corrupt");
+			}
+			
+			// read the fences onto the heap
+			ByteBuffer fences = ByteBuffer.allocate((int) (size - TRAILER_SIZE - fenceOffset));
+			readFully(channel, fences, fenceOffset);
+			
+			this.fenceNames = new byte[fenceCount][];
+			long[] offsets = new long[fenceCount];
+			for(int index = 0; index < fenceCount; index++) {
+				this.fenceNames[index] = new byte[fences.getInt()];
+				fences.get(this.fenceNames[index]);
+				offsets[index] = fences.getLong();
+			}
+			
+			// map the entries in regions of whole blocks
+			this.fenceOffsets = new int[fenceCount];
+			this.fenceRegions = new int[fenceCount];
+			this.fenceEnds = new int[fenceCount];
+			
+			List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+			int block = 0;
+			while(block < fenceCount) {
+				long start = offsets[block];
+				int last = block;
+				while(last + 1 < fenceCount && blockEnd(offsets, last + 1, fenceOffset) - start <= MAX_REGION_SIZE) {
+					last++;
+				}
+				
+				long end = blockEnd(offsets, last, fenceOffset);
+				if(end - start > Integer.MAX_VALUE) {
+					throw new IOException("Metadata snapshot block is too large to map");
+				}
+				
+				for(int index = block; index <= last; index++) {
+					this.fenceRegions[index] = mapped.size();
+					this.fenceOffsets[index] = (int) (offsets[index] - start);
+					this.fenceEnds[index] = (int) (blockEnd(offsets, index, fenceOffset) - start);
+				}
+				
+				mapped.add(channel.map(MapMode.READ_ONLY, start, end - start));
+				block = last + 1;
+			}
+			
+			this.regions = mapped.toArray(new MappedByteBuffer[mapped.size()]);
+		} catch(RuntimeException e) {
+			throw new IOException("Metadata snapshot is corrupt", e);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Find the metadata of the given flake in the snapshot.
+	 * 
+	 * @param flakeName
+	 * @return the metadata, or <code>null</code> if the flake is not in the
+	 *         snapshot
+	 */
+	public FlakeMetadata get(String flakeName) {
+		byte[] key = flakeName.getBytes();
+		
+		// the last block starting at or before the key
+		int low = 0;
+		int high = this.fenceNames.length - 1;
+		int block = -1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(compare(this.fenceNames[mid], key) <= 0) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		
+		if(block < 0) {
+			return null;
+		}
+		
+		// scan the block - entries are sorted
+		ByteBuffer region = this.regions[this.fenceRegions[block]].duplicate();
+		region.position(this.fenceOffsets[block]);
+		int end = this.fenceEnds[block];
+		while(region.position() < end) {
+			byte[] name = new byte[region.getInt()];
+			region.get(name);
+			byte[] value = new byte[region.get() & 0xff];
+			region.get(value);
+			
+			int comparison = compare(name, key);
+			if(comparison == 0) {
+				return new FlakeMetadata(flakeName, value);
+			}
+			
+			if(comparison > 0) {
+				break;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Return the number of entries in the snapshot.
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return this.entryCount;
+	}
+	
+	/**
+	 * Write a snapshot of the given entries, which must be sorted by name, to
+	 * the given file. The snapshot is written to a temporary file that is
+	 * forced to disk and then renamed, so that the file is always either the
+	 * previous snapshot or a complete new one.
+	 * 
+	 * @param file
+	 * @param entries
+	 * @throws IOException
+	 */
+	public static void write(File file, Iterator<Entry<byte[], byte[]>> entries) throws IOException {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		
+		List<byte[]> fenceNames = new ArrayList<byte[]>();
+		List<Long> fenceOffsets = new ArrayList<Long>();
+		long entryCount = 0;
+		
+		FileOutputStream fileStream = new FileOutputStream(temp);
+		try {
+			BufferedOutputStream stream = new BufferedOutputStream(fileStream, 64 * 1024);
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			
+			buffer.putInt(MAGIC).putInt(VERSION);
+			stream.write(buffer.array(), 0, 8);
+			long position = 8;
+			
+			while(entries.hasNext()) {
+				Entry<byte[], byte[]> entry = entries.next();
+				byte[] name = entry.getKey();
+				byte[] value = entry.getValue();
+				if(value.length > 0xff) {
+					throw new IOException("Flake metadata too long for snapshot: " + value.length);
+				}
+				
+				if(entryCount % FENCE_INTERVAL == 0) {
+					fenceNames.add(name);
+					fenceOffsets.add(position);
+				}
+				
+				buffer.clear();
+				buffer.putInt(name.length);
+				stream.write(buffer.array(), 0, 4);
+				stream.write(name);
+				stream.write(value.length);
+				stream.write(value);
+				
+				position += 4 + name.length + 1 + value.length;
+				entryCount++;
+			}
+			
+			long fenceOffset = position;
+			for(int index = 0; index < fenceNames.size(); index++) {
+				byte[] name = fenceNames.get(index);
+				
+				buffer.clear();
+				buffer.putInt(name.length);
+				stream.write(buffer.array(), 0, 4);
+				stream.write(name);
+				
+				buffer.clear();
+				buffer.putLong(fenceOffsets.get(index));
+				stream.write(buffer.array(), 0, 8);
+			}
+			
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			trailer.putLong(fenceOffset).putInt(fenceNames.size()).putLong(entryCount).putInt(MAGIC);
+			stream.write(trailer.array());
+			
+			stream.flush();
+			fileStream.getChannel().force(true);
+		} finally {
+			fileStream.close();
+		}
+		
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to replace metadata snapshot: " + file.getAbsolutePath());
+		}
+	}
+	
+	private static long blockEnd(long[] offsets, int block, long fenceOffset) {
+		return block + 1 < offsets.length ? offsets[block + 1] : fenceOffset;
+	}
+	
+	/**
+	 * Compare two names as unsigned bytes - the order in which LevelDB keeps
+	 * its keys.
+	 */
+	private static int compare(byte[] first, byte[] second) {
+		int length = Math.min(first.length, second.length);
+		for(int index = 0; index < length; index++) {
+			int difference = (first[index] & 0xff) - (second[index] & 0xff);
+			if(difference != 0) {
+				return difference;
+			}
+		}
+		
+		return first.length - second.length;
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if(read < 0) {
+				throw new IOException("Metadata snapshot is truncated");
+			}
+		}
+		
+		buffer.flip();
+	}
+
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.Closeable;
+import java.util.Collection;
+
+import com.sangupta.snowpack.domain.FlakeMetadata;
+
+/**
+ * Contract for the engines that store the {@link FlakeMetadata} of every flake
+ * in a snowpack, keyed by the flake name.
+ * 
+ * @author sangupta
+ *
+ */
+public interface MetadataStore extends Closeable {
+	
+	/**
+	 * Check if there exists metadata for a flake with the given flake name.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	public boolean has(String flakeName);
+	
+	/**
+	 * Read the metadata for the given flake.
+	 * 
+	 * @param flakeName
+	 * @return the metadata, or <code>null</code> if no such flake exists
+	 */
+	public FlakeMetadata get(String flakeName);
+	
+	/**
+	 * Save the metadata of a flake, replacing any previous entry.
+	 * 
+	 * @param flakeMetadata
+	 */
+	public void save(FlakeMetadata flakeMetadata);
+	
+	/**
+	 * Save the metadata of all the given flakes at once.
+	 * 
+	 * @param flakeMetadatas
+	 */
+	public void saveAll(Collection<FlakeMetadata> flakeMetadatas);
+	
+	/**
+	 * List the metadata of all flakes whose name starts with the given prefix,
+	 * in the byte order of their names.
+	 * 
+	 * @param prefix
+	 * @param pageToken
+	 *            the token returned by an earlier listing to continue from, or
+	 *            <code>null</code> to start at the beginning
+	 * @return
+	 * @throws UnsupportedOperationException
+	 *             if the store cannot list flakes
+	 */
+	public FlakeIterator list(String prefix, String pageToken);
+	
+	/**
+	 * Remove the metadata of the given flake.
+	 * 
+	 * @param flakeName
+	 */
+	public void remove(String flakeName);
+	
+	/**
+	 * Empty any in-memory cache held by the store.
+	 * 
+	 */
+	public void emptyCache();
+	
+	/**
+	 * Close the store.
+	 * 
+	 */
+	@Override
+	public void close();
+
+}
@@ -0,0 +1,455 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sangupta.snowpack.domain.Flake;
+
+/**
+ * A flake cache that keeps the flake bytes outside of the Java heap in direct
+ * {@link ByteBuffer} slabs. Each slab is assigned to a size class on first
+ * use and is carved into equal slots of that size - a flake is stored in a
+ * slot of the smallest class that fits it. When a class runs out of free slots
+ * and no more slabs may be allocated, the least recently used flake of that
+ * class is evicted; a class that holds no slab at all takes one over from the
+ * class with the most slabs. Free slots are tracked inside the slabs, so only
+ * a compact index of the cached flakes lives on the heap.
+ * 
+ * @author sangupta
+ *
+ */
+public class OffHeapFlakeCache {
+	
+	/**
+	 * Size of the smallest slot
+	 */
+	private static final int MIN_SLOT_SIZE = 64;
+	
+	/**
+	 * Growth factor between the slot sizes of two consecutive size classes
+	 */
+	private static final double GROWTH_FACTOR = 1.25d;
+	
+	/**
+	 * Marks the end of a free list
+	 */
+	private static final long NO_SLOT = -1l;
+	
+	/**
+	 * Size of each slab
+	 */
+	private final int slabSize;
+	
+	/**
+	 * Maximum number of slabs that can be allocated
+	 */
+	private final int maxSlabs;
+	
+	/**
+	 * All slabs allocated till now
+	 */
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	
+	/**
+	 * The size class each slab is currently assigned to
+	 */
+	private final List<Integer> slabOwners = new ArrayList<Integer>();
+	
+	/**
+	 * The size classes in increasing order of slot size
+	 */
+	private final SlabClass[] slabClasses;
+	
+	/**
+	 * The index of all flakes held in this cache
+	 */
+	private final Map<String, Slot> index = new HashMap<String, Slot>();
+	
+	/**
+	 * Total number of flake bytes held in this cache
+	 */
+	private long weightedSize;
+	
+	/**
+	 * Create a new off-heap cache.
+	 * 
+	 * @param maxBytes
+	 * @param slabSize
+	 */
+	public OffHeapFlakeCache(long maxBytes, int slabSize) {
+		if(slabSize < MIN_SLOT_SIZE) {
+			throw new IllegalArgumentException("Slab size cannot be less than " + MIN_SLOT_SIZE + " bytes");
+		}
+		
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(maxBytes / slabSize, Integer.MAX_VALUE);
+		
+		List<SlabClass> classes = new ArrayList<SlabClass>();
+		int slotSize = MIN_SLOT_SIZE;
+		while(slotSize < slabSize) {
+			classes.add(new SlabClass(classes.size(), slotSize));
+			
+			// keep slots 8-byte aligned
+			slotSize = Math.max(slotSize + 8, ((int) (slotSize * GROWTH_FACTOR) + 7) & ~7);
+		}
+		classes.add(new SlabClass(classes.size(), slabSize));
+		
+		this.slabClasses = classes.toArray(new SlabClass[classes.size()]);
+	}
+	
+	/**
+	 * Store the flake in this cache, evicting older flakes of the same size
+	 * class if needed.
+	 * 
+	 * @param flake
+	 * @return <code>true</code> if the flake was stored
+	 */
+	public synchronized boolean put(Flake flake) {
+		if(flake == null) {
+			return false;
+		}
+		
+		// buffer-backed flakes are copied in as well
+		ByteBuffer data = flake.asBuffer();
+		if(data == null || data.remaining() > this.slabSize) {
+			return false;
+		}
+		
+		// drop any previous copy
+		remove(flake.flakeName);
+		
+		SlabClass slabClass = classFor(data.remaining());
+		Slot slot = slabClass.allocate(flake.flakeName, data.remaining(), flake.created);
+		if(slot == null) {
+			return false;
+		}
+		
+		ByteBuffer slab = this.slabs.get(slot.slab).duplicate();
+		slab.position(slot.position);
+		slab.put(data);
+		
+		this.index.put(flake.flakeName, slot);
+		this.weightedSize += slot.length;
+		return true;
+	}
+	
+	/**
+	 * Read the flake back from this cache and remove it from here - to be used
+	 * when the flake is promoted to the on-heap cache.
+	 * 
+	 * @param flakeName
+	 * @return the flake, or <code>null</code> if it is not in this cache
+	 */
+	public synchronized Flake take(String flakeName) {
+		Slot slot = this.index.get(flakeName);
+		if(slot == null) {
+			return null;
+		}
+		
+		byte[] bytes = new byte[slot.length];
+		ByteBuffer slab = this.slabs.get(slot.slab).duplicate();
+		slab.position(slot.position);
+		slab.get(bytes);
+		
+		remove(flakeName);
+		return new Flake(flakeName, slot.length, slot.created, bytes);
+	}
+	
+	/**
+	 * Check if the flake is present in this cache.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	public synchronized boolean containsKey(String flakeName) {
+		return this.index.containsKey(flakeName);
+	}
+	
+	/**
+	 * Remove the flake from this cache and free its slot.
+	 * 
+	 * @param flakeName
+	 */
+	public synchronized void remove(String flakeName) {
+		Slot slot = this.index.remove(flakeName);
+		if(slot == null) {
+			return;
+		}
+		
+		this.slabClasses[slot.slabClass].free(flakeName, slot);
+		this.weightedSize -= slot.length;
+	}
+	
+	/**
+	 * Remove all flakes from this cache. Allocated slabs are kept and reused.
+	 * 
+	 */
+	public synchronized void clear() {
+		for(SlabClass slabClass : this.slabClasses) {
+			for(Slot slot : slabClass.lru.values()) {
+				slabClass.pushFree(slot.slab, slot.position);
+			}
+			
+			slabClass.lru.clear();
+		}
+		
+		this.index.clear();
+		this.weightedSize = 0;
+	}
+	
+	/**
+	 * Move one slab to the given size class once all slabs have been handed
+	 * out. The slab is taken from the class holding the most slabs - the one
+	 * containing its least recently used flake - so that a size class that
+	 * shows up late is not left without any cache space.
+	 * 
+	 * @param target
+	 */
+	private void rebalance(SlabClass target) {
+		SlabClass victim = null;
+		for(SlabClass slabClass : this.slabClasses) {
+			if(slabClass == target || slabClass.numSlabs == 0) {
+				continue;
+			}
+			
+			if(victim == null || slabClass.numSlabs > victim.numSlabs) {
+				victim = slabClass;
+			}
+		}
+		
+		if(victim == null) {
+			return;
+		}
+		
+		int slab = -1;
+		if(!victim.lru.isEmpty()) {
+			slab = victim.lru.values().iterator().next().slab;
+		} else {
+			slab = this.slabOwners.lastIndexOf(victim.id);
+		}
+		
+		victim.releaseSlab(slab);
+		target.addSlab(slab);
+	}
+	
+	/**
+	 * Return the total number of flake bytes held in this cache.
+	 * 
+	 * @return
+	 */
+	public synchronized long getWeightedSize() {
+		return this.weightedSize;
+	}
+	
+	/**
+	 * Find the smallest size class that can hold the given number of bytes.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	private SlabClass classFor(int length) {
+		for(SlabClass slabClass : this.slabClasses) {
+			if(slabClass.slotSize >= length) {
+				return slabClass;
+			}
+		}
+		
+		return this.slabClasses[this.slabClasses.length - 1];
+	}
+	
+	/**
+	 * Location of one cached flake inside a slab.
+	 * 
+	 */
+	private static class Slot {
+		
+		final int slabClass;
+		
+		final int slab;
+		
+		final int position;
+		
+		final int length;
+		
+		final long created;
+		
+		Slot(int slabClass, int slab, int position, int length, long created) {
+			this.slabClass = slabClass;
+			this.slab = slab;
+			this.position = position;
+			this.length = length;
+			this.created = created;
+		}
+		
+	}
+	
+	/**
+	 * A size class with its free slots and the flakes it holds in
+	 * least-recently-used order. Free slots are chained into a list that is
+	 * stored in the first bytes of the free slots themselves, so that free
+	 * slots cost no heap at all - only the head of the list lives here.
+	 * 
+	 */
+	private class SlabClass {
+		
+		final int id;
+		
+		final int slotSize;
+		
+		final LinkedHashMap<String, Slot> lru = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+		
+		/**
+		 * Packed slab/position of the first free slot, or <code>-1</code>
+		 */
+		long freeHead = NO_SLOT;
+		
+		int numFree = 0;
+		
+		/**
+		 * Number of slabs currently assigned to this class
+		 */
+		int numSlabs = 0;
+		
+		SlabClass(int id, int slotSize) {
+			this.id = id;
+			this.slotSize = slotSize;
+		}
+		
+		/**
+		 * Allocate a slot for the given flake - from the free list, a new slab, by
+		 * evicting the least recently used flake of this class or by taking over a
+		 * slab of another class.
+		 * 
+		 */
+		Slot allocate(String flakeName, int length, long created) {
+			if(this.numFree == 0) {
+				if(slabs.size() < maxSlabs) {
+					addSlab(slabs.size());
+				} else if(!this.lru.isEmpty()) {
+					Iterator<String> eldest = this.lru.keySet().iterator();
+					OffHeapFlakeCache.this.remove(eldest.next());
+				} else {
+					rebalance(this);
+				}
+			}
+			
+			if(this.numFree == 0) {
+				return null;
+			}
+			
+			long free = this.freeHead;
+			int slab = (int) (free >>> 32);
+			int position = (int) free;
+			
+			this.freeHead = slabs.get(slab).getLong(position);
+			this.numFree--;
+			
+			Slot slot = new Slot(this.id, slab, position, length, created);
+			this.lru.put(flakeName, slot);
+			return slot;
+		}
+		
+		/**
+		 * Return the slot to the free list.
+		 * 
+		 */
+		void free(String flakeName, Slot slot) {
+			this.lru.remove(flakeName);
+			pushFree(slot.slab, slot.position);
+		}
+		
+		/**
+		 * Add the slot at the given location to the free list.
+		 * 
+		 */
+		void pushFree(int slab, int position) {
+			slabs.get(slab).putLong(position, this.freeHead);
+			
+			this.freeHead = (((long) slab) << 32) | (position & 0xffffffffl);
+			this.numFree++;
+		}
+		
+		/**
+		 * Give up the given slab: evict all flakes held in it and drop its slots
+		 * from the free list.
+		 * 
+		 */
+		void releaseSlab(int slab) {
+			Iterator<Map.Entry<String, Slot>> iterator = this.lru.entrySet().iterator();
+			while(iterator.hasNext()) {
+				Map.Entry<String, Slot> entry = iterator.next();
+				Slot slot = entry.getValue();
+				if(slot.slab != slab) {
+					continue;
+				}
+				
+				iterator.remove();
+				index.remove(entry.getKey());
+				weightedSize -= slot.length;
+			}
+			
+			// rebuild the free list without the slots of this slab
+			long free = this.freeHead;
+			this.freeHead = NO_SLOT;
+			this.numFree = 0;
+			while(free != NO_SLOT) {
+				int freeSlab = (int) (free >>> 32);
+				int position = (int) free;
+				free = slabs.get(freeSlab).getLong(position);
+				
+				if(freeSlab != slab) {
+					pushFree(freeSlab, position);
+				}
+			}
+			
+			this.numSlabs--;
+		}
+		
+		/**
+		 * Assign the given slab to this class and carve it into slots.
+		 * 
+		 */
+		void addSlab(int slab) {
+			if(slab == slabs.size()) {
+				slabs.add(ByteBuffer.allocateDirect(slabSize));
+				slabOwners.add(this.id);
+			} else {
+				slabOwners.set(slab, this.id);
+			}
+			
+			for(int position = slabSize - this.slotSize; position >= 0; position -= this.slotSize) {
+				pushFree(slab, position);
+			}
+			
+			this.numSlabs++;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,680 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.hash.Hashing;
+import com.sangupta.snowpack.domain.DurabilityMode;
+import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.SnowpackConfig;
+
+/**
+ * A {@link MetadataStore} that keeps the metadata of all flakes in an
+ * open-addressing hash table, outside of the Java heap. Flakes are keyed by
+ * the 128-bit murmur hash of their name, and each entry is a fixed-size slot
+ * holding the chunk, offset and length of the flake. The table is split into
+ * segments, each held in its own memory-mapped file and locked on its own.
+ * A segment doubles in size once it is 70% full, up to {@link #MAX_CAPACITY}
+ * slots. The number of segments is picked when the index is created, from the
+ * largest number of flakes it must hold - see
+ * {@link SnowpackConfig#metadataIndexMaxFlakes} - and cannot change later.
+ * 
+ * Flake names themselves are not stored - two names that share a 128-bit hash
+ * would map to the same entry, which in practice does not happen. For the same
+ * reason the flakes in the index cannot be listed.
+ * 
+ * @author sangupta
+ *
+ */
+public class OffHeapMetadataIndex implements MetadataStore {
+	
+	/**
+	 * Least number of segments the table is split into - always a power of two
+	 */
+	private static final int MIN_SEGMENTS = 16;
+	
+	/**
+	 * Largest number of segments the table is split into
+	 */
+	private static final int MAX_SEGMENTS = 1 << 12;
+	
+	/**
+	 * Marker at the start of every segment file
+	 */
+	private static final int MAGIC = 0x534e5049; // SNPI
+	
+	/**
+	 * Size of the header of a segment file - magic, version and capacity
+	 */
+	private static final int HEADER_SIZE = 16;
+	
+	/**
+	 * Size of each slot - two longs of hash, the offset, chunk, length,
+	 * header length and the state of the slot
+	 */
+	private static final int SLOT_SIZE = 40;
+	
+	/**
+	 * Largest number of slots in a segment, so that it can be mapped at once
+	 */
+	private static final int MAX_CAPACITY = 1 << 25;
+	
+	/**
+	 * Number of live entries a full segment holds below the load factor
+	 */
+	private static final long MAX_SEGMENT_FLAKES = (long) (MAX_CAPACITY * 0.7d);
+	
+	private static final int SLOT_EMPTY = 0;
+	
+	private static final int SLOT_USED = 1;
+	
+	private static final int SLOT_DELETED = 2;
+	
+	/**
+	 * All segments of the table
+	 */
+	private final Segment[] segments;
+	
+	/**
+	 * Largest number of flakes the index is sized for
+	 */
+	private final long maxFlakes;
+	
+	/**
+	 * Whether every write is forced to disk before returning
+	 */
+	private final boolean syncWrites;
+	
+	/**
+	 * Open or create the index as per the given configuration.
+	 * 
+	 * @param baseLocation
+	 * @param config
+	 */
+	public OffHeapMetadataIndex(File baseLocation, SnowpackConfig config) {
+		this(baseLocation, config.metadataIndexInitialCapacity, config.metadataIndexMaxFlakes, config.durabilityMode == DurabilityMode.BATCH || config.durabilityMode == DurabilityMode.FLAKE);
+	}
+	
+	/**
+	 * Open or create the index in the given base location.
+	 * 
+	 * @param baseLocation
+	 * @param initialCapacity
+	 *            the number of flakes the index is sized for when created
+	 * @param maxFlakes
+	 *            the largest number of flakes the index must be able to hold
+	 * @param syncWrites
+	 *            whether every write is forced to disk before returning
+	 * @throws IllegalStateException
+	 *             if an existing index cannot hold <code>maxFlakes</code> flakes
+	 */
+	public OffHeapMetadataIndex(File baseLocation, int initialCapacity, long maxFlakes, boolean syncWrites) {
+		File directory = new File(baseLocation, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY);
+		if(!directory.exists()) {
+			directory.mkdirs();
+		}
+		
+		// an existing index keeps the segments it was created with
+		int numSegments = getSegmentCount(baseLocation);
+		if(numSegments == 0) {
+			numSegments = MIN_SEGMENTS;
+			while(getMaxFlakes(numSegments) < maxFlakes) {
+				if(numSegments == MAX_SEGMENTS) {
+					throw new IllegalArgumentException("Metadata index can hold at most " + getMaxFlakes(MAX_SEGMENTS) + " flakes");
+				}
+				
+				numSegments <<= 1;
+			}
+		} else if(getMaxFlakes(numSegments) < maxFlakes) {
+			throw new IllegalStateException("Metadata index in " + directory.getAbsolutePath() + " can hold at most " + getMaxFlakes(numSegments)
+					+ " flakes, less than the configured maximum of " + maxFlakes);
+		}
+		
+		// enough slots to hold the initial capacity below the load factor
+		int capacity = 16;
+		while(capacity < MAX_CAPACITY && capacity * 0.7d < (double) initialCapacity / numSegments) {
+			capacity <<= 1;
+		}
+		
+		this.segments = new Segment[numSegments];
+		this.maxFlakes = getMaxFlakes(numSegments);
+		
+		try {
+			for(int index = 0; index < numSegments; index++) {
+				this.segments[index] = new Segment(index, segmentFile(directory, index), capacity, this.maxFlakes);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Unable to open/create metadata index", e);
+		}
+		
+		this.syncWrites = syncWrites;
+	}
+	
+	/**
+	 * Return the largest number of flakes the index in the given base location
+	 * can hold.
+	 * 
+	 * @param baseLocation
+	 * @return the number of flakes, or <code>0</code> if there is no index
+	 */
+	public static long getMaxFlakes(File baseLocation) {
+		int numSegments = getSegmentCount(baseLocation);
+		if(numSegments == 0) {
+			return 0;
+		}
+		
+		return getMaxFlakes(numSegments);
+	}
+	
+	/**
+	 * The flakes do not spread evenly across the segments, so the index holds
+	 * only 90% of what its full segments could.
+	 */
+	private static long getMaxFlakes(int numSegments) {
+		return numSegments * MAX_SEGMENT_FLAKES / 10 * 9;
+	}
+	
+	/**
+	 * Count the segment files of the index in the given base location.
+	 */
+	private static int getSegmentCount(File baseLocation) {
+		File directory = new File(baseLocation, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY);
+		
+		int numSegments = 0;
+		while(segmentFile(directory, numSegments).exists()) {
+			numSegments++;
+		}
+		
+		return numSegments;
+	}
+	
+	private static File segmentFile(File directory, int index) {
+		return new File(directory, "segment-" + index + ".idx");
+	}
+	
+	/**
+	 * Check if the flake exists in the index.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	@Override
+	public boolean has(String flakeName) {
+		return get(flakeName) != null;
+	}
+	
+	/**
+	 * Read the metadata of the given flake from the index.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	@Override
+	public FlakeMetadata get(String flakeName) {
+		if(flakeName == null) {
+			return null;
+		}
+		
+		ByteBuffer hash = hash(flakeName);
+		long h1 = hash.getLong(0);
+		long h2 = hash.getLong(8);
+		
+		return segmentFor(h2).get(flakeName, h1, h2);
+	}
+	
+	/**
+	 * Save the metadata of a flake to the index.
+	 * 
+	 * @param flakeMetadata
+	 */
+	@Override
+	public void save(FlakeMetadata flakeMetadata) {
+		if(flakeMetadata == null) {
+			return;
+		}
+		
+		Segment segment = put(flakeMetadata);
+		if(this.syncWrites) {
+			segment.force();
+		}
+	}
+	
+	/**
+	 * Save the metadata of all given flakes to the index. In sync mode the
+	 * segments are forced to disk once all entries have been written.
+	 * 
+	 * @param flakeMetadatas
+	 */
+	@Override
+	public void saveAll(Collection<FlakeMetadata> flakeMetadatas) {
+		if(flakeMetadatas == null || flakeMetadatas.isEmpty()) {
+			return;
+		}
+		
+		boolean[] touched = new boolean[this.segments.length];
+		for(FlakeMetadata flakeMetadata : flakeMetadatas) {
+			touched[put(flakeMetadata).index] = true;
+		}
+		
+		if(this.syncWrites) {
+			for(int index = 0; index < this.segments.length; index++) {
+				if(touched[index]) {
+					this.segments[index].force();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Flake names are not kept in the index, so flakes cannot be listed.
+	 * 
+	 */
+	@Override
+	public FlakeIterator list(String prefix, String pageToken) {
+		throw new UnsupportedOperationException("The off-heap metadata index cannot list flakes");
+	}
+	
+	/**
+	 * Remove the given flake from the index.
+	 * 
+	 * @param flakeName
+	 */
+	@Override
+	public void remove(String flakeName) {
+		if(flakeName == null) {
+			return;
+		}
+		
+		ByteBuffer hash = hash(flakeName);
+		long h1 = hash.getLong(0);
+		long h2 = hash.getLong(8);
+		
+		Segment segment = segmentFor(h2);
+		segment.remove(h1, h2);
+		if(this.syncWrites) {
+			segment.force();
+		}
+	}
+	
+	/**
+	 * Nothing is cached on the heap.
+	 * 
+	 */
+	@Override
+	public void emptyCache() {
+		// nothing to do
+	}
+	
+	/**
+	 * Return the number of flakes in the index.
+	 * 
+	 * @return
+	 */
+	public long size() {
+		long size = 0;
+		for(Segment segment : this.segments) {
+			size += segment.size();
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * Force all segments to disk. The mapped files are released once the
+	 * buffers are garbage collected.
+	 * 
+	 */
+	@Override
+	public void close() {
+		for(Segment segment : this.segments) {
+			segment.force();
+		}
+	}
+	
+	private Segment put(FlakeMetadata flakeMetadata) {
+		ByteBuffer hash = hash(flakeMetadata.flakeName);
+		long h1 = hash.getLong(0);
+		long h2 = hash.getLong(8);
+		
+		Segment segment = segmentFor(h2);
+		segment.put(h1, h2, flakeMetadata);
+		return segment;
+	}
+	
+	private Segment segmentFor(long h2) {
+		return this.segments[(int) (h2 & (this.segments.length - 1))];
+	}
+	
+	private static ByteBuffer hash(String flakeName) {
+		return ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(flakeName.getBytes()).asBytes());
+	}
+	
+	/**
+	 * One segment of the table, held in a memory-mapped file.
+	 * 
+	 * @author sangupta
+	 *
+	 */
+	private static class Segment {
+		
+		final int index;
+		
+		final File file;
+		
+		/**
+		 * Largest number of flakes in the whole index, reported once full
+		 */
+		final long maxFlakes;
+		
+		final ReadWriteLock lock = new ReentrantReadWriteLock();
+		
+		MappedByteBuffer buffer;
+		
+		int capacity;
+		
+		/**
+		 * Number of slots in use
+		 */
+		int used;
+		
+		/**
+		 * Number of slots holding a deleted entry - they still lengthen the probes
+		 */
+		int deleted;
+		
+		Segment(int index, File file, int capacity, long maxFlakes) throws IOException {
+			this.index = index;
+			this.file = file;
+			this.maxFlakes = maxFlakes;
+			
+			if(!file.exists() || file.length() < HEADER_SIZE) {
+				this.buffer = create(file, capacity);
+				this.capacity = capacity;
+				return;
+			}
+			
+			this.buffer = map(file, file.length());
+			if(this.buffer.getInt(0) != MAGIC) {
+				throw new IOException("Not a metadata index segment: " + file.getAbsolutePath());
+			}
+			
+			this.capacity = this.buffer.getInt(8);
+			
+			rebuild();
+		}
+		
+		/**
+		 * Count the used and deleted slots, and drop the entries left behind by
+		 * updates cut short by a crash - the old entry stays ahead of the new
+		 * one on the probe sequence, in the same run of non-empty slots. The
+		 * counts are not saved, as this single pass over the file is cheap and
+		 * survives crashes.
+		 */
+		private void rebuild() {
+			int mask = this.capacity - 1;
+			
+			// start after an empty slot so that no run wraps around - the
+			// table is never full
+			int start = 0;
+			while(this.buffer.getInt(position(start) + 36) != SLOT_EMPTY) {
+				start++;
+			}
+			
+			Map<Long, Integer> run = new HashMap<Long, Integer>();
+			for(int probes = 1; probes <= this.capacity; probes++) {
+				int slot = (start + probes) & mask;
+				int position = position(slot);
+				int state = this.buffer.getInt(position + 36);
+				if(state == SLOT_EMPTY) {
+					run.clear();
+					continue;
+				}
+				
+				if(state == SLOT_DELETED) {
+					this.deleted++;
+					continue;
+				}
+				
+				this.used++;
+				
+				long h1 = this.buffer.getLong(position);
+				Integer earlier = run.put(h1, slot);
+				if(earlier != null && this.buffer.getLong(position(earlier) + 8) == this.buffer.getLong(position + 8)) {
+					this.buffer.putInt(position(earlier) + 36, SLOT_DELETED);
+					this.used--;
+					this.deleted++;
+				}
+			}
+		}
+		
+		FlakeMetadata get(String flakeName, long h1, long h2) {
+			this.lock.readLock().lock();
+			try {
+				int slot = find(h1, h2);
+				if(slot < 0) {
+					return null;
+				}
+				
+				int position = position(slot);
+				return new FlakeMetadata(flakeName, this.buffer.getInt(position + 28), this.buffer.getInt(position + 24), this.buffer.getLong(position + 16), this.buffer.getInt(position + 32));
+			} finally {
+				this.lock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Save the entry for the given hash. A live slot is never rewritten in
+		 * place, as a crash could leave it torn - an updated entry is written to
+		 * a free slot further along the probe sequence, and only then is the old
+		 * slot marked deleted.
+		 */
+		void put(long h1, long h2, FlakeMetadata flakeMetadata) {
+			this.lock.writeLock().lock();
+			try {
+				if((this.used + this.deleted + 1) > this.capacity * 0.7d) {
+					// only grow if the table is full of live entries
+					resize(this.used + 1 > this.capacity * 0.35d ? this.capacity << 1 : this.capacity);
+				}
+				
+				int existing = find(h1, h2);
+				int slot = freeSlot(existing < 0 ? (int) h1 : existing + 1);
+				if(this.buffer.getInt(position(slot) + 36) == SLOT_DELETED) {
+					this.deleted--;
+				}
+				
+				write(this.buffer, position(slot), h1, h2, flakeMetadata.chunk, flakeMetadata.offset, flakeMetadata.length, flakeMetadata.headerLength);
+				
+				if(existing < 0) {
+					this.used++;
+				} else {
+					this.buffer.putInt(position(existing) + 36, SLOT_DELETED);
+					this.deleted++;
+				}
+			} catch(IOException e) {
+				throw new RuntimeException("Unable to grow metadata index", e);
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+		
+		void remove(long h1, long h2) {
+			this.lock.writeLock().lock();
+			try {
+				int slot = find(h1, h2);
+				if(slot < 0) {
+					return;
+				}
+				
+				this.buffer.putInt(position(slot) + 36, SLOT_DELETED);
+				this.used--;
+				this.deleted++;
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+		
+		int size() {
+			this.lock.readLock().lock();
+			try {
+				return this.used;
+			} finally {
+				this.lock.readLock().unlock();
+			}
+		}
+		
+		void force() {
+			this.lock.readLock().lock();
+			try {
+				this.buffer.force();
+			} finally {
+				this.lock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Find the slot holding the given hash.
+		 * 
+		 * @return the slot, or <code>-1</code> if the hash is not in the table
+		 */
+		private int find(long h1, long h2) {
+			int mask = this.capacity - 1;
+			int slot = (int) (h1 & mask);
+			for(int probes = 0; probes < this.capacity; probes++) {
+				int position = position(slot);
+				int state = this.buffer.getInt(position + 36);
+				if(state == SLOT_EMPTY) {
+					return -1;
+				}
+				
+				if(state == SLOT_USED && this.buffer.getLong(position) == h1 && this.buffer.getLong(position + 8) == h2) {
+					return slot;
+				}
+				
+				slot = (slot + 1) & mask;
+			}
+			
+			return -1;
+		}
+		
+		/**
+		 * Find the first empty or deleted slot on the probe sequence, starting at
+		 * the given slot. The table always has free slots, as it is never full.
+		 */
+		private int freeSlot(int start) {
+			int mask = this.capacity - 1;
+			int slot = start & mask;
+			while(this.buffer.getInt(position(slot) + 36) == SLOT_USED) {
+				slot = (slot + 1) & mask;
+			}
+			
+			return slot;
+		}
+		
+		/**
+		 * Copy all live entries into a new file of the given capacity and
+		 * switch over to it. Deleted entries are dropped on the way.
+		 */
+		private void resize(int newCapacity) throws IOException {
+			if(newCapacity > MAX_CAPACITY) {
+				throw new IllegalStateException("Metadata index is full - it can hold at most " + this.maxFlakes + " flakes");
+			}
+			
+			// left behind if we crashed during an earlier resize
+			File temp = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+			temp.delete();
+			
+			MappedByteBuffer table = create(temp, newCapacity);
+			
+			int mask = newCapacity - 1;
+			for(int slot = 0; slot < this.capacity; slot++) {
+				int position = position(slot);
+				if(this.buffer.getInt(position + 36) != SLOT_USED) {
+					continue;
+				}
+				
+				long h1 = this.buffer.getLong(position);
+				int target = (int) (h1 & mask);
+				while(table.getInt(position(target) + 36) == SLOT_USED) {
+					target = (target + 1) & mask;
+				}
+				
+				write(table, position(target), h1, this.buffer.getLong(position + 8), this.buffer.getInt(position + 24), this.buffer.getLong(position + 16), this.buffer.getInt(position + 28), this.buffer.getInt(position + 32));
+			}
+			
+			table.force();
+			if(!temp.renameTo(this.file)) {
+				throw new IOException("Unable to replace metadata index segment: " + this.file.getAbsolutePath());
+			}
+			
+			this.buffer = table;
+			this.capacity = newCapacity;
+			this.deleted = 0;
+		}
+		
+		private static void write(ByteBuffer table, int position, long h1, long h2, int chunk, long offset, int length, int headerLength) {
+			table.putLong(position, h1);
+			table.putLong(position + 8, h2);
+			table.putLong(position + 16, offset);
+			table.putInt(position + 24, chunk);
+			table.putInt(position + 28, length);
+			table.putInt(position + 32, headerLength);
+			
+			// the slot becomes visible only once it is complete
+			table.putInt(position + 36, SLOT_USED);
+		}
+		
+		private static int position(int slot) {
+			return HEADER_SIZE + slot * SLOT_SIZE;
+		}
+		
+		private static MappedByteBuffer create(File file, int capacity) throws IOException {
+			MappedByteBuffer buffer = map(file, (long) position(capacity));
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, 1);
+			buffer.putInt(8, capacity);
+			return buffer;
+		}
+		
+		private static MappedByteBuffer map(File file, long length) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+				return raf.getChannel().map(MapMode.READ_WRITE, 0, length);
+			} finally {
+				raf.close();
+			}
+		}
+		
+	}
+
+}
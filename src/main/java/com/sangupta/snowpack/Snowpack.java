@@ -21,23 +21,63 @@
 
 package com.sangupta.snowpack;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.io.FileUtils;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.sangupta.snowpack.codec.FlakeCodecs;
 import com.sangupta.snowpack.domain.ChunkInfo;
+import com.sangupta.snowpack.domain.DurabilityMode;
 import com.sangupta.snowpack.domain.Flake;
 import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.MetadataEngine;
+import com.sangupta.snowpack.domain.SnowpackCacheStats;
 import com.sangupta.snowpack.domain.SnowpackConfig;
 import com.sangupta.snowpack.domain.SnowpackMeta;
+import com.sangupta.snowpack.io.ChunkFooter;
+import com.sangupta.snowpack.io.ChunkIO;
 import com.sangupta.snowpack.io.ChunkReader;
 import com.sangupta.snowpack.io.ChunkWriter;
 
@@ -66,9 +106,15 @@ public class Snowpack {
 	private final SnowpackCache cache;
 
 	/**
-	 * The metadata DB associated with it
+	 * The metadata store associated with it
 	 */
-	private final SnowpackMetadataDB metadataDB;
+	private final MetadataStore metadataDB;
+	
+	/**
+	 * The content-addressed index of flake data - <code>null</code> unless
+	 * deduplication is enabled
+	 */
+	private final SnowpackDedupIndex dedupIndex;
 	
 	/**
 	 * The metadata for the snowpack itself
@@ -82,14 +128,52 @@ public class Snowpack {
 	private final File baseDirectory;
 	
 	/**
-	 * Number of chunk readers
+	 * All chunk readers and writers keyed by their chunk index
+	 */
+	private final ConcurrentMap<Integer, ChunkIO> chunks = new ConcurrentHashMap<Integer, ChunkIO>();
+	
+	/**
+	 * The active chunk writers which are going to write data to disk - one per slot
+	 */
+	private final AtomicReferenceArray<ChunkWriter> chunkWriters;
+	
+	/**
+	 * Guards the roll over of the writer in each slot
+	 */
+	private final Object[] rollOverLocks;
+	
+	/**
+	 * The index of the next chunk to be created
+	 */
+	private final AtomicInteger nextChunkIndex = new AtomicInteger();
+	
+	/**
+	 * Counter used to assign flakes to writers round-robin
 	 */
-	private final List<ChunkReader> chunkReaders = new ArrayList<ChunkReader>(10); // 10 chunks to start with
+	private final AtomicInteger nextWriterSlot = new AtomicInteger();
 	
 	/**
-	 * The current chunk writer which is going to write data to disk
+	 * Chunk writers created and allocated ahead of time, ready to take over
+	 * from a full writer
 	 */
-	private final AtomicReference<ChunkWriter> chunkWriter = new AtomicReference<ChunkWriter>();
+	private final BlockingQueue<ChunkWriter> spareWriters = new LinkedBlockingQueue<ChunkWriter>();
+	
+	/**
+	 * Creates spare chunks and seals full chunks in the background - <code>null</code>
+	 * if chunks are not pre-created
+	 */
+	private final ExecutorService chunkExecutor;
+	
+	/**
+	 * The executor that serves asynchronous reads and writes - created on first use
+	 */
+	private volatile ListeningExecutorService ioExecutor;
+	
+	/**
+	 * Forces the active chunk to disk in periodic durability mode - <code>null</code>
+	 * in all other modes
+	 */
+	private final ScheduledExecutorService fsyncExecutor;
 	
 	/**
 	 * Keeps track of whether this snowpack has closed or not.
@@ -117,9 +201,28 @@ public class Snowpack {
 			throw new IllegalArgumentException("Root directory for Snowpack cannot be null");
 		}
 		
+		if(config.activeWriters < 1) {
+			throw new IllegalArgumentException("Snowpack needs at least one active writer");
+		}
+		
+		if(config.metadataEngine == MetadataEngine.OFF_HEAP_INDEX && config.flakeListingEnabled) {
+			throw new IllegalArgumentException("The off-heap metadata index cannot list flakes - disable flake listing to use it");
+		}
+		
+		// flakes written with the configured codec must be readable
+		if(config.compressionCodec != null) {
+			FlakeCodecs.register(config.compressionCodec);
+		}
+		
 		this.baseDirectory = root;
 		this.configuration = config;
 		
+		this.chunkWriters = new AtomicReferenceArray<ChunkWriter>(config.activeWriters);
+		this.rollOverLocks = new Object[config.activeWriters];
+		for(int slot = 0; slot < this.rollOverLocks.length; slot++) {
+			this.rollOverLocks[slot] = new Object();
+		}
+		
 		if(!this.baseDirectory.exists()) {
 			this.baseDirectory.mkdirs();
 		}
@@ -127,11 +230,18 @@ public class Snowpack {
 		// read all the configuration from the file-system
 		this.meta = readSnowpackMeta();
 
-		// initialize the metadata DB
-		this.metadataDB = new SnowpackMetadataDB(this.baseDirectory, this.configuration.readCachingEnabled, this.configuration.maxEntriesInMetadataCache);
+		// initialize the metadata store
+		this.metadataDB = createMetadataStore();
+		
+		// and the dedup index if needed
+		if(this.configuration.dedupEnabled) {
+			this.dedupIndex = new SnowpackDedupIndex(this.baseDirectory);
+		} else {
+			this.dedupIndex = null;
+		}
 
 		// the cache system
-		this.cache = new SnowpackCache(this.configuration.readCachingEnabled, this.configuration.maxEntriesInReadCache);
+		this.cache = new SnowpackCache(this.configuration);
 		
 		// load all readers/writers
 		try {
@@ -139,44 +249,171 @@ public class Snowpack {
 		} catch(Exception e) {
 			throw new RuntimeException("Unable to start snowpack", e);
 		}
+		
+		if(this.configuration.durabilityMode == DurabilityMode.PERIODIC) {
+			this.fsyncExecutor = startPeriodicFsync();
+		} else {
+			this.fsyncExecutor = null;
+		}
+		
+		if(this.configuration.preCreateChunks) {
+			this.chunkExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("snowpack-chunk-%d").build());
+			this.chunkExecutor.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					createSpareWriters();
+				}
+				
+			});
+		} else {
+			this.chunkExecutor = null;
+		}
+	}
+	
+	/**
+	 * Start the background task that forces the active chunk to disk every
+	 * {@link SnowpackConfig#fsyncIntervalMillis} milliseconds.
+	 * 
+	 * @return
+	 */
+	private ScheduledExecutorService startPeriodicFsync() {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("snowpack-fsync-%d").build());
+		
+		final long interval = this.configuration.fsyncIntervalMillis;
+		executor.scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				for(int slot = 0; slot < chunkWriters.length(); slot++) {
+					try {
+						chunkWriters.get(slot).force();
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		
+		return executor;
 	}
 
 	/**
-	 * Initialize snowpack into this directory.
+	 * Initialize snowpack into this directory. Chunks that were being written to
+	 * during the last run are reopened for writing, unless they are full or there
+	 * are more of them than the active writers configured now - in which case
+	 * they are sealed. New chunks are created for any slot left without a writer.
+	 * 
 	 * @throws IOException 
 	 * 
 	 */
 	private void initialize() throws IOException {
-		// check if last chunk is full
-		long writePointer = 0;
-		int lastChunkIndex = this.meta.numChunks - 1;
-		if(lastChunkIndex < 0) {
-			lastChunkIndex = 0;
-		}
+		int nextChunk = 0;
+		int slot = 0;
 		
-		if(isChunkFull(this.meta.getLastChunk(), true)) {
-			lastChunkIndex++;
-		} else {
-			if(this.meta.getLastChunk() != null) {
-				writePointer = this.meta.getLastChunk().writePointer;
+		for(ChunkInfo chunkInfo : this.meta.chunks) {
+			final int index = chunkInfo.chunkID;
+			nextChunk = Math.max(nextChunk, index + 1);
+			
+			// a chunk that can still be written to
+			if(chunkInfo.writePointer >= 0) {
+				if(slot < this.chunkWriters.length() && !isChunkFull(chunkInfo, true)) {
+					ChunkWriter writer = new ChunkWriter(getChunkFile(index), chunkInfo.writePointer, index, this.metadataDB, this.configuration);
+					this.chunkWriters.set(slot++, writer);
+					this.chunks.put(index, writer);
+					continue;
+				}
+				
+				// a full chunk left behind by the last run is sealed now
+				sealChunk(getChunkFile(index), index, chunkInfo.writePointer);
 			}
+			
+			ChunkReader reader = new ChunkReader(getChunkFile(index), index, chunkInfo.numFiles, this.configuration);
+			this.chunks.put(index, reader);
 		}
 		
-		// start reading all chunks
-		for(int index = 0; index < this.meta.numChunks - 1; index++) {
-			ChunkReader reader = new ChunkReader(getChunkFile(index), index, this.meta.chunks.get(index).numFiles);
-			this.chunkReaders.add(reader);
+		final int knownChunks = this.chunks.size();
+		this.nextChunkIndex.set(openOrphanChunks(nextChunk));
+		final boolean orphansFound = this.chunks.size() > knownChunks;
+		
+		// now create the remaining chunk writers
+		for( ; slot < this.chunkWriters.length(); slot++) {
+			ChunkWriter writer = createWriter();
+			this.chunkWriters.set(slot, writer);
+			this.chunks.put(writer.getChunkIndex(), writer);
 		}
 		
-		// now load the current chunk writer or create a new one
-		ChunkWriter writer = new ChunkWriter(getChunkFile(lastChunkIndex), writePointer, lastChunkIndex, this.metadataDB, this.configuration); // subtracting one to reload the chunk
-		boolean updated = this.chunkWriter.compareAndSet(null, writer);
-		if(!updated) {
-			throw new IllegalStateException("Unable to create a chunk writer");
+		// make the orphan chunks known to the snowpack info
+		if(orphansFound) {
+			writeCurrentMetadata();
+		}
+	}
+	
+	/**
+	 * Find chunk files left behind by a run that did not close properly, and
+	 * that are not known to the snowpack info. Spare chunks that were never
+	 * written to are deleted. Any other such chunk was being written to when the
+	 * snowpack info was last saved - its flakes may already be in the metadata,
+	 * so it is sealed and opened for reading, and new chunks are numbered after
+	 * it.
+	 * 
+	 * @param nextChunk
+	 * @return the index from which new chunks can be created
+	 * @throws IOException
+	 */
+	private int openOrphanChunks(int nextChunk) throws IOException {
+		int index = nextChunk;
+		for(File chunkFile = getChunkFile(index); chunkFile.exists(); chunkFile = getChunkFile(++index)) {
+			RandomAccessFile handler = new RandomAccessFile(chunkFile, "r");
+			boolean empty;
+			try {
+				empty = handler.length() < 4 || handler.readInt() == 0;
+			} finally {
+				handler.close();
+			}
+			
+			if(empty) {
+				chunkFile.delete();
+				continue;
+			}
+			
+			ChunkFooter footer = ChunkFooter.read(chunkFile);
+			if(footer == null) {
+				sealChunk(chunkFile, index, chunkFile.length());
+				footer = ChunkFooter.read(chunkFile);
+			}
+			
+			ChunkReader reader = new ChunkReader(chunkFile, index, footer.entries.size(), this.configuration);
+			this.chunks.put(index, reader);
+			nextChunk = index + 1;
 		}
 		
-		// update the chunk count
-		this.meta.numChunks = lastChunkIndex + 1;
+		return nextChunk;
+	}
+	
+	/**
+	 * Write the footer index to a chunk that was not sealed by its writer.
+	 * 
+	 * @param chunkFile
+	 * @param index
+	 * @param dataEnd
+	 * @throws IOException
+	 */
+	private void sealChunk(File chunkFile, int index, long dataEnd) throws IOException {
+		if(ChunkFooter.read(chunkFile) != null) {
+			return;
+		}
+		
+		ChunkFooter.Builder footer = new ChunkFooter.Builder(index);
+		dataEnd = footer.scan(chunkFile, dataEnd);
+		
+		RandomAccessFile handler = new RandomAccessFile(chunkFile, "rw");
+		try {
+			footer.write(handler, dataEnd);
+		} finally {
+			handler.close();
+		}
 	}
 	
 	/**
@@ -191,6 +428,15 @@ public class Snowpack {
 		this.metadataDB.emptyCache();
 	}
 	
+	/**
+	 * Return the hit, miss and eviction counters of the global flake cache.
+	 * 
+	 * @return
+	 */
+	public SnowpackCacheStats getCacheStats() {
+		return this.cache.getStats();
+	}
+	
 	/**
 	 * Method that checks whether the given chunk is full or not.
 	 * 
@@ -202,6 +448,11 @@ public class Snowpack {
 			return false;
 		}
 		
+		// a sealed chunk
+		if(chunkInfo.writePointer < 0) {
+			return true;
+		}
+		
 		long delta = this.configuration.maxFileSize - chunkInfo.writePointer;
 		if(delta < 0) {
 			return true;
@@ -217,7 +468,9 @@ public class Snowpack {
 	}
 
 	/**
-	 * Retrieve a given flake from the snowpack.
+	 * Retrieve a given flake from the snowpack. If memory-mapping of sealed chunks
+	 * is enabled, flakes from such chunks are returned as a read-only
+	 * {@link Flake#buffer} over the mapping instead of a copy in {@link Flake#bytes}.
 	 * 
 	 * @param flakeName
 	 * @return
@@ -229,10 +482,14 @@ public class Snowpack {
 		}
 		
 		// flake in memory cache
-		if(this.cache.containsKey(flakeName)) {
-			return this.cache.get(flakeName);
+		Flake flake = this.cache.get(flakeName);
+		if(flake != null) {
+			return flake;
 		}
 		
+		// a save from now on makes what we read stale
+		long stamp = this.cache.stamp(flakeName);
+		
 		// flake is with us
 		FlakeMetadata metadata = this.metadataDB.get(flakeName);
 		if(metadata == null) {
@@ -240,17 +497,225 @@ public class Snowpack {
 			return null;
 		}
 		
-		// now check which chunk reader should process it
-		ChunkWriter myWriter = this.chunkWriter.get();
-		if(metadata.chunk == myWriter.getChunkIndex()) {
-			// this is the chunk being written to
-			// return it from the memory
-			return myWriter.readFlake(metadata);
+		// no flake in global cache
+		// read from the chunk - writer will return it from memory
+		flake = readFlake(metadata);
+		
+		// cache it for subsequent reads
+		this.cache.put(flake, stamp);
+		
+		return flake;
+	}
+	
+	/**
+	 * Retrieve multiple flakes from the snowpack in one go. All metadata is
+	 * resolved first, and then the flakes are read chunk by chunk in the order
+	 * of their offset, merging nearby records into a single read.
+	 * 
+	 * @param flakeNames
+	 * @return map of flake name to flake - flakes that do not exist are absent
+	 * @throws IOException
+	 */
+	public Map<String, Flake> getFlakes(Collection<String> flakeNames) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("This snowpack has already been closed.");
 		}
 		
-		// no flake in global cache
-		// read from disk
-		return this.chunkReaders.get(metadata.chunk).readFlake(metadata);
+		if(flakeNames == null) {
+			throw new IllegalArgumentException("Flake names cannot be null");
+		}
+		
+		Map<String, Flake> flakes = new HashMap<String, Flake>();
+		Map<String, Long> stamps = new HashMap<String, Long>();
+		
+		// resolve everything that is not in memory
+		Map<Integer, List<FlakeMetadata>> chunks = new HashMap<Integer, List<FlakeMetadata>>();
+		for(String flakeName : flakeNames) {
+			Flake flake = this.cache.get(flakeName);
+			if(flake != null) {
+				flakes.put(flakeName, flake);
+				continue;
+			}
+			
+			stamps.put(flakeName, this.cache.stamp(flakeName));
+			
+			FlakeMetadata metadata = this.metadataDB.get(flakeName);
+			if(metadata == null) {
+				continue;
+			}
+			
+			List<FlakeMetadata> list = chunks.get(metadata.chunk);
+			if(list == null) {
+				list = new ArrayList<FlakeMetadata>();
+				chunks.put(metadata.chunk, list);
+			}
+			
+			list.add(metadata);
+		}
+		
+		// read chunk by chunk
+		for(Entry<Integer, List<FlakeMetadata>> entry : chunks.entrySet()) {
+			ChunkIO chunk = getChunk(entry.getKey());
+			
+			List<Flake> read;
+			if(chunk instanceof ChunkReader) {
+				read = ((ChunkReader) chunk).readFlakes(entry.getValue());
+			} else {
+				read = new ArrayList<Flake>(entry.getValue().size());
+				for(FlakeMetadata metadata : entry.getValue()) {
+					read.add(readFlake(metadata));
+				}
+			}
+			
+			for(Flake flake : read) {
+				if(flake != null) {
+					this.cache.put(flake, stamps.get(flake.flakeName));
+					flakes.put(flake.flakeName, flake);
+				}
+			}
+		}
+		
+		return flakes;
+	}
+	
+	/**
+	 * Transfer the contents of the given flake directly from the chunk on disk to
+	 * the given channel, without copying the bytes to the heap. This is the preferred
+	 * way to serve flakes over sockets. The target channel must be in blocking
+	 * mode.
+	 * 
+	 * @param flakeName
+	 * @param target
+	 * @return <code>true</code> if the flake was transferred, <code>false</code> if
+	 *         no such flake exists
+	 * @throws IOException
+	 */
+	public boolean transferFlake(String flakeName, WritableByteChannel target) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("This snowpack has already been closed.");
+		}
+		
+		if(target == null) {
+			throw new IllegalArgumentException("Target channel cannot be null");
+		}
+		
+		FlakeMetadata metadata = this.metadataDB.get(flakeName);
+		if(metadata == null) {
+			// no such flake
+			return false;
+		}
+		
+		ChunkIO chunk = getChunk(metadata.chunk);
+		try {
+			chunk.transferFlake(metadata, target);
+		} catch(ClosedChannelException e) {
+			// the chunk was handed over to a reader in between
+			ChunkIO current = getChunk(metadata.chunk);
+			if(current == chunk) {
+				throw e;
+			}
+			
+			current.transferFlake(metadata, target);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Read the flake from the chunk that holds it. A full chunk is sealed in
+	 * the background, and its writer is closed once a reader has taken over -
+	 * a read that races with this is retried on the reader.
+	 * 
+	 * @param metadata
+	 * @return
+	 * @throws IOException
+	 */
+	private Flake readFlake(FlakeMetadata metadata) throws IOException {
+		ChunkIO chunk = getChunk(metadata.chunk);
+		try {
+			return chunk.readFlake(metadata);
+		} catch(ClosedChannelException e) {
+			ChunkIO current = getChunk(metadata.chunk);
+			if(current == chunk) {
+				throw e;
+			}
+			
+			return current.readFlake(metadata);
+		}
+	}
+	
+	/**
+	 * Return the chunk reader or writer that handles the chunk with the given index.
+	 * 
+	 * @param chunkIndex
+	 * @return
+	 */
+	private ChunkIO getChunk(int chunkIndex) {
+		ChunkIO chunk = this.chunks.get(chunkIndex);
+		if(chunk == null) {
+			throw new IllegalStateException("No chunk found with index: " + chunkIndex);
+		}
+		
+		return chunk;
+	}
+	
+	/**
+	 * Select the writer slot for the next save. Slots are either assigned
+	 * round-robin, or by the calling thread if thread affinity is enabled.
+	 * 
+	 * @return
+	 */
+	private int selectWriterSlot() {
+		final int numWriters = this.chunkWriters.length();
+		if(numWriters == 1) {
+			return 0;
+		}
+		
+		if(this.configuration.writerThreadAffinity) {
+			return (int) (Thread.currentThread().getId() % numWriters);
+		}
+		
+		return (this.nextWriterSlot.getAndIncrement() & Integer.MAX_VALUE) % numWriters;
+	}
+	
+	/**
+	 * List all flakes whose name starts with the given prefix, in the byte order
+	 * of their names. The returned iterator reads names lazily and must be
+	 * closed once done with. Listing is not available if it has been disabled
+	 * in the configuration.
+	 * 
+	 * @param prefix
+	 *            the prefix to match, <code>null</code> or empty to list all
+	 *            flakes
+	 * @return
+	 */
+	public FlakeIterator listFlakes(String prefix) {
+		return listFlakes(prefix, null);
+	}
+	
+	/**
+	 * List all flakes whose name starts with the given prefix, continuing after
+	 * the flake identified by the page token of an earlier listing.
+	 * 
+	 * @param prefix
+	 *            the prefix to match, <code>null</code> or empty to list all
+	 *            flakes
+	 * @param pageToken
+	 *            the value of {@link FlakeIterator#getPageToken()} from an
+	 *            earlier listing, or <code>null</code> to start at the
+	 *            beginning
+	 * @return
+	 */
+	public FlakeIterator listFlakes(String prefix, String pageToken) {
+		if(this.closed) {
+			throw new IllegalStateException("This snowpack has already been closed.");
+		}
+		
+		if(!this.configuration.flakeListingEnabled) {
+			throw new UnsupportedOperationException("Flake listing has been disabled for this snowpack");
+		}
+		
+		return this.metadataDB.list(prefix, pageToken);
 	}
 	
 	/**
@@ -289,6 +754,404 @@ public class Snowpack {
 			throw new IllegalStateException("This snowpack has already been closed.");
 		}
 		
+		Flake flake = createFlake(flakeName, bytes);
+		
+		// identical data may already be stored
+		byte[] hash = null;
+		Lock lock = null;
+		if(this.dedupIndex != null) {
+			if(bytes.length >= this.configuration.dedupMinSize) {
+				hash = this.dedupIndex.hash(bytes);
+			}
+			
+			// saves of the same flake replace its previous version one at a time
+			lock = this.dedupIndex.getLock(flakeName);
+			lock.lock();
+		}
+		
+		try {
+			int slot;
+			ChunkWriter myWriter;
+			try {
+				FlakeMetadata previous = null;
+				FlakeMetadata shared = null;
+				if(this.dedupIndex != null) {
+					previous = this.metadataDB.get(flakeName);
+				}
+				
+				if(hash != null) {
+					shared = this.dedupIndex.addReference(hash, flakeName);
+				}
+				
+				FlakeMetadata saved;
+				while(true) {
+					// obtain a copy locally for we may need to atomically switch
+					slot = selectWriterSlot();
+					myWriter = this.chunkWriters.get(slot);
+					
+					try {
+						if(shared != null) {
+							saved = myWriter.saveReference(flakeName, shared);
+						} else {
+							saved = myWriter.save(flake);
+						}
+						
+						break;
+					} catch(IllegalStateException e) {
+						// another thread rolled over this writer - retry with the new one
+						if(this.closed || !myWriter.isClosed()) {
+							throw e;
+						}
+					} catch(IOException e) {
+						// the reference was never saved
+						if(shared != null) {
+							this.dedupIndex.release(shared);
+						}
+						
+						throw e;
+					}
+				}
+				
+				// any cached copy is now stale
+				this.cache.remove(flakeName);
+				
+				// index the new record so that later copies can share it
+				if(hash != null && shared == null) {
+					this.dedupIndex.addLocation(hash, saved);
+				}
+				
+				// the previous version may have been shared
+				if(this.dedupIndex != null) {
+					this.dedupIndex.release(previous);
+				}
+			} finally {
+				if(lock != null) {
+					lock.unlock();
+				}
+			}
+			
+			// check if the chunk is full or not
+			if(myWriter.isOverflow()) {
+				rollOverWriter(slot, myWriter);
+			}
+			
+			// all set and done
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return false;
+	}
+
+	/**
+	 * Store a new flake in the snowpack by streaming its contents from the given
+	 * channel straight into the chunk. Exactly <code>length</code> bytes are read
+	 * from the channel, which must be in blocking mode.
+	 * 
+	 * @param flakeName
+	 * @param source
+	 * @param length
+	 * @return <code>false</code> if the flake could not be saved, including when
+	 *         the source ends before <code>length</code> bytes
+	 */
+	public boolean saveFlake(String flakeName, ReadableByteChannel source, long length) {
+		if(this.closed) {
+			throw new IllegalStateException("This snowpack has already been closed.");
+		}
+		
+		if(flakeName == null || flakeName.isEmpty()) {
+			throw new IllegalArgumentException("Flake name cannot be null/empty");
+		}
+		
+		if(source == null) {
+			throw new IllegalArgumentException("Flake source cannot be null");
+		}
+		
+		if(length <= 0) {
+			throw new IllegalArgumentException("Flake data cannot be empty");
+		}
+		
+		if(length > this.configuration.maxFileSize || length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Flake size is greater than maximum allowed size");
+		}
+		
+		// streamed flakes are never deduplicated, but may replace one that was
+		Lock lock = null;
+		if(this.dedupIndex != null) {
+			lock = this.dedupIndex.getLock(flakeName);
+			lock.lock();
+		}
+		
+		try {
+			int slot;
+			ChunkWriter myWriter;
+			try {
+				FlakeMetadata previous = null;
+				if(this.dedupIndex != null) {
+					previous = this.metadataDB.get(flakeName);
+				}
+				
+				while(true) {
+					// obtain a copy locally for we may need to atomically switch
+					slot = selectWriterSlot();
+					myWriter = this.chunkWriters.get(slot);
+					
+					try {
+						myWriter.save(flakeName, source, (int) length);
+						break;
+					} catch(IllegalStateException e) {
+						// another thread rolled over this writer before we reserved space - retry with the new one
+						if(this.closed || !myWriter.isClosed()) {
+							throw e;
+						}
+					}
+				}
+				
+				// any cached copy is now stale
+				this.cache.remove(flakeName);
+				
+				if(this.dedupIndex != null) {
+					this.dedupIndex.release(previous);
+				}
+			} finally {
+				if(lock != null) {
+					lock.unlock();
+				}
+			}
+			
+			// check if the chunk is full or not
+			if(myWriter.isOverflow()) {
+				rollOverWriter(slot, myWriter);
+			}
+			
+			// all set and done
+			return true;
+		} catch (EOFException e) {
+			// the source was shorter than promised - the record stays incomplete
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Store a new flake in the snowpack by streaming its contents from the given
+	 * stream. Exactly <code>length</code> bytes are read from the stream, which
+	 * is not closed.
+	 * 
+	 * @param flakeName
+	 * @param source
+	 * @param length
+	 * @return
+	 */
+	public boolean saveFlake(String flakeName, InputStream source, long length) {
+		if(source == null) {
+			throw new IllegalArgumentException("Flake source cannot be null");
+		}
+		
+		if(source instanceof FileInputStream) {
+			return saveFlake(flakeName, ((FileInputStream) source).getChannel(), length);
+		}
+		
+		return saveFlake(flakeName, Channels.newChannel(source), length);
+	}
+	
+	/**
+	 * Store all the given flakes in the snowpack. The flakes are written to the
+	 * chunk in batches, with a single disk write and a single metadata commit
+	 * per batch.
+	 * 
+	 * @param flakes
+	 * @return the number of flakes that were saved
+	 * @throws IOException
+	 *             if a batch could not be written - the flakes of the batches
+	 *             written before it stay saved
+	 */
+	public int saveFlakes(Map<String, byte[]> flakes) throws IOException {
+		if(flakes == null) {
+			throw new IllegalArgumentException("Flakes cannot be null");
+		}
+		
+		return saveFlakes(flakes.entrySet().iterator());
+	}
+	
+	/**
+	 * Store all the flakes returned by the iterator in the snowpack. The iterator
+	 * is consumed one batch at a time, and thus can be used to import a very
+	 * large number of flakes. A batch is closed when it reaches
+	 * {@link SnowpackConfig#maxBytesInSaveBatch} or when it would overflow the
+	 * current chunk.
+	 * 
+	 * @param flakes
+	 * @return the number of flakes that were saved
+	 * @throws IOException
+	 *             if a batch could not be written - the flakes of the batches
+	 *             written before it stay saved
+	 */
+	public int saveFlakes(Iterator<Entry<String, byte[]>> flakes) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("This snowpack has already been closed.");
+		}
+		
+		if(flakes == null) {
+			throw new IllegalArgumentException("Flakes cannot be null");
+		}
+		
+		List<Flake> batch = new ArrayList<Flake>();
+		long batchSize = 0;
+		int saved = 0;
+		
+		// the whole import goes to one writer slot
+		final int slot = selectWriterSlot();
+		
+		while(flakes.hasNext()) {
+			Entry<String, byte[]> entry = flakes.next();
+			Flake flake = createFlake(entry.getKey(), entry.getValue());
+			long recordSize = 4 + flake.flakeName.getBytes().length + 4 + 8 + flake.length + 1;
+			
+			// close the batch if this flake does not fit
+			if(!batch.isEmpty()) {
+				long room = this.configuration.maxFileSize - this.chunkWriters.get(slot).getCurrentDataSize();
+				long limit = Math.min(this.configuration.maxBytesInSaveBatch, room);
+				if(batchSize + recordSize > limit) {
+					saveBatch(slot, batch);
+					saved += batch.size();
+					
+					batch.clear();
+					batchSize = 0;
+				}
+			}
+			
+			batch.add(flake);
+			batchSize += recordSize;
+		}
+		
+		if(!batch.isEmpty()) {
+			saveBatch(slot, batch);
+			saved += batch.size();
+		}
+		
+		return saved;
+	}
+	
+	/**
+	 * Write the batch of flakes to the chunk in the given writer slot and roll
+	 * over the chunk if it is full. Flakes whose data is already stored are
+	 * saved as references to it, as in {@link #saveFlake(String, byte[])}.
+	 * 
+	 * @param slot
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void saveBatch(int slot, List<Flake> batch) throws IOException {
+		// the flakes of the batch replace their previous versions together
+		List<Lock> locks = Collections.emptyList();
+		Map<String, FlakeMetadata> previous = Collections.emptyMap();
+		if(this.dedupIndex != null) {
+			Set<String> names = new LinkedHashSet<String>();
+			for(Flake flake : batch) {
+				names.add(flake.flakeName);
+			}
+			
+			locks = this.dedupIndex.getLocks(names);
+			for(Lock lock : locks) {
+				lock.lock();
+			}
+		}
+		
+		ChunkWriter myWriter;
+		try {
+			// identical data may already be stored
+			List<byte[]> hashes = new ArrayList<byte[]>(batch.size());
+			List<FlakeMetadata> shared = new ArrayList<FlakeMetadata>(batch.size());
+			if(this.dedupIndex != null) {
+				previous = new HashMap<String, FlakeMetadata>();
+				for(Flake flake : batch) {
+					if(!previous.containsKey(flake.flakeName)) {
+						previous.put(flake.flakeName, this.metadataDB.get(flake.flakeName));
+					}
+					
+					byte[] hash = null;
+					if(flake.bytes.length >= this.configuration.dedupMinSize) {
+						hash = this.dedupIndex.hash(flake.bytes);
+					}
+					
+					hashes.add(hash);
+					shared.add(hash != null ? this.dedupIndex.addReference(hash, flake.flakeName) : null);
+				}
+			} else {
+				for(int index = 0; index < batch.size(); index++) {
+					hashes.add(null);
+					shared.add(null);
+				}
+			}
+			
+			List<FlakeMetadata> saved;
+			while(true) {
+				// obtain a copy locally for we may need to atomically switch
+				myWriter = this.chunkWriters.get(slot);
+				
+				try {
+					saved = myWriter.saveAll(batch, shared);
+					break;
+				} catch(IllegalStateException e) {
+					// another thread rolled over this writer - retry with the new one
+					if(this.closed || !myWriter.isClosed()) {
+						throw e;
+					}
+				} catch(IOException e) {
+					// the references were never saved
+					for(FlakeMetadata flakeMetadata : shared) {
+						if(flakeMetadata != null) {
+							this.dedupIndex.release(flakeMetadata);
+						}
+					}
+					
+					throw e;
+				}
+			}
+			
+			// any cached copies are now stale
+			for(Flake flake : batch) {
+				this.cache.remove(flake.flakeName);
+			}
+			
+			if(this.dedupIndex != null) {
+				for(int index = 0; index < batch.size(); index++) {
+					// index the new record so that later copies can share it
+					if(hashes.get(index) != null && shared.get(index) == null) {
+						this.dedupIndex.addLocation(hashes.get(index), saved.get(index));
+					}
+					
+					// the previous version may have been shared - a flake
+					// repeated in the batch replaces its earlier copy
+					String flakeName = batch.get(index).flakeName;
+					this.dedupIndex.release(previous.put(flakeName, saved.get(index)));
+				}
+			}
+		} finally {
+			for(Lock lock : locks) {
+				lock.unlock();
+			}
+		}
+		
+		// check if the chunk is full or not
+		if(myWriter.isOverflow()) {
+			rollOverWriter(slot, myWriter);
+		}
+	}
+	
+	/**
+	 * Validate the name and data and create a new flake from them.
+	 * 
+	 * @param flakeName
+	 * @param bytes
+	 * @return
+	 */
+	private Flake createFlake(String flakeName, byte[] bytes) {
 		if(flakeName == null || flakeName.isEmpty()) {
 			throw new IllegalArgumentException("Flake name cannot be null/empty");
 		}
@@ -307,57 +1170,185 @@ public class Snowpack {
 		flake.bytes = bytes;
 		flake.created = System.currentTimeMillis();
 		
-		// obtain a copy locally for we may need to atomically switch
-		ChunkWriter myWriter = this.chunkWriter.get();
+		return flake;
+	}
+	
+	/**
+	 * Retrieve a given flake from the snowpack without blocking the caller. The
+	 * read is performed on the I/O executor of this snowpack.
+	 * 
+	 * @param flakeName
+	 * @return a future that completes with the flake, or <code>null</code> if
+	 *         no such flake exists
+	 */
+	public ListenableFuture<Flake> getFlakeAsync(final String flakeName) {
+		return submit(new Callable<Flake>() {
+			
+			@Override
+			public Flake call() throws Exception {
+				return getFlake(flakeName);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Store a new flake in the snowpack without blocking the caller. The write
+	 * is performed on the I/O executor of this snowpack.
+	 * 
+	 * @param flakeName
+	 * @param bytes
+	 * @return a future that completes with the result of {@link #saveFlake(String, byte[])}
+	 */
+	public ListenableFuture<Boolean> saveFlakeAsync(final String flakeName, final byte[] bytes) {
+		return submit(new Callable<Boolean>() {
+			
+			@Override
+			public Boolean call() throws Exception {
+				return saveFlake(flakeName, bytes);
+			}
+			
+		});
+	}
+	
+	/**
+	 * Submit the task to the I/O executor. If the queue of the executor is full
+	 * the returned future fails right away, so that the caller never blocks.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	private <T> ListenableFuture<T> submit(Callable<T> task) {
+		if(this.closed) {
+			return Futures.immediateFailedFuture(new IllegalStateException("This snowpack has already been closed."));
+		}
 		
 		try {
-			boolean overflow = myWriter.save(flake);
-
-			// check if the chunk is full or not
-			if(overflow) {
-				synchronized(this) {
-					rollOverWriter(myWriter);
-				}
+			return getIOExecutor().submit(task);
+		} catch(RejectedExecutionException e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
+	
+	/**
+	 * Return the I/O executor, creating it if needed.
+	 * 
+	 * @return
+	 */
+	private ListeningExecutorService getIOExecutor() {
+		ListeningExecutorService executor = this.ioExecutor;
+		if(executor != null) {
+			return executor;
+		}
+		
+		synchronized(this) {
+			if(this.ioExecutor == null) {
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(this.configuration.ioThreads, this.configuration.ioThreads, 0l, TimeUnit.MILLISECONDS, 
+																 new ArrayBlockingQueue<Runnable>(this.configuration.ioQueueSize),
+																 new ThreadFactoryBuilder().setDaemon(true).setNameFormat("snowpack-io-%d").build());
+				
+				this.ioExecutor = MoreExecutors.listeningDecorator(pool);
 			}
 			
-			// all set and done
-			return true;
-		} catch (IOException e) {
-			e.printStackTrace();
+			return this.ioExecutor;
 		}
-		
-		return false;
 	}
-
+	
 	/**
+	 * Replace the full writer in the given slot with a writer on a new chunk. A
+	 * spare writer is used if one is ready, and the old chunk is sealed in the
+	 * background - so the caller only waits for the swap. Without chunk
+	 * pre-creation all of this happens on the calling thread.
+	 * 
+	 * @param slot
 	 * @param myWriter
 	 * @throws IOException
 	 */
-	private void rollOverWriter(ChunkWriter myWriter) throws IOException {
-		ChunkWriter currentWriter = this.chunkWriter.get();
-		if(!currentWriter.isOverflow()) {
+	private void rollOverWriter(int slot, final ChunkWriter myWriter) throws IOException {
+		synchronized(this.rollOverLocks[slot]) {
+			// some other thread may have already rolled over
+			ChunkWriter currentWriter = this.chunkWriters.get(slot);
+			if(currentWriter != myWriter || !currentWriter.isOverflow()) {
+				return;
+			}
+			
+			// we need to roll over
+			ChunkWriter newWriter = this.spareWriters.poll();
+			if(newWriter == null) {
+				newWriter = createWriter();
+			}
+			
+			this.chunks.put(newWriter.getChunkIndex(), newWriter);
+			this.chunkWriters.set(slot, newWriter);
+		}
+		
+		if(this.chunkExecutor == null) {
+			retireWriter(myWriter);
 			return;
 		}
 		
-		// we need to roll over
-		int index = this.meta.numChunks++;
-		ChunkWriter newWriter = new ChunkWriter(getChunkFile(index), 0l, index, this.metadataDB, this.configuration);
+		try {
+			this.chunkExecutor.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						retireWriter(myWriter);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+					
+					createSpareWriters();
+				}
+				
+			});
+		} catch(RejectedExecutionException e) {
+			// snowpack is closing
+			retireWriter(myWriter);
+		}
+	}
+	
+	/**
+	 * Seal the chunk of a full writer and hand it over to a reader.
+	 * 
+	 * @param writer
+	 * @throws IOException
+	 */
+	private void retireWriter(ChunkWriter writer) throws IOException {
+		// make the current chunk writer a chunk reader
+		ChunkReader reader = writer.getReader();
+		this.chunks.put(reader.getChunkIndex(), reader);
 		
-		// switch if no other thread has switched till now
-		boolean updated = this.chunkWriter.compareAndSet(myWriter, newWriter);
+		// close current file
+		writer.close();
 		
-		if(updated) {
-			// make the current chunk writer a chunk reader
-			ChunkReader reader = myWriter.getReader();
-			
-			// add this to global readers
-			this.chunkReaders.add(reader);
-			
-			// release current writer
-			myWriter = null;
-
-			// output the metadata
-			this.writeCurrentMetadata();
+		// output the metadata
+		this.writeCurrentMetadata();
+	}
+	
+	/**
+	 * Create a writer on a new chunk.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	private ChunkWriter createWriter() throws IOException {
+		int index = this.nextChunkIndex.getAndIncrement();
+		return new ChunkWriter(getChunkFile(index), 0l, index, this.metadataDB, this.configuration);
+	}
+	
+	/**
+	 * Keep one spare writer ready for every active writer.
+	 * 
+	 */
+	private void createSpareWriters() {
+		while(!this.closed && this.spareWriters.size() < this.chunkWriters.length()) {
+			try {
+				this.spareWriters.add(createWriter());
+			} catch(IOException e) {
+				e.printStackTrace();
+				return;
+			}
 		}
 	}
 	
@@ -372,21 +1363,57 @@ public class Snowpack {
 			return;
 		}
 		
+		// let pending asynchronous operations finish
+		if(this.ioExecutor != null) {
+			this.ioExecutor.shutdown();
+			try {
+				this.ioExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		// stop the background fsync - closing the writer forces it one last time
+		if(this.fsyncExecutor != null) {
+			// do not interrupt - an interrupted force closes the channel
+			this.fsyncExecutor.shutdown();
+			try {
+				this.fsyncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
 		// close this one
 		this.closed = true;
 		
+		// let the chunks being sealed finish
+		if(this.chunkExecutor != null) {
+			this.chunkExecutor.shutdown();
+			try {
+				this.chunkExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		// spare chunks were never written to
+		ChunkWriter spare;
+		while((spare = this.spareWriters.poll()) != null) {
+			spare.close();
+			FileUtils.deleteQuietly(getChunkFile(spare.getChunkIndex()));
+		}
+		
 		// start closing everything else
 		this.cache.close();
 		this.metadataDB.close();
+		if(this.dedupIndex != null) {
+			this.dedupIndex.close();
+		}
 		
-		// close chunk writer - for it will clean up the cache
-		final ChunkWriter chunkWriter = this.chunkWriter.get();
-		chunkWriter.close();
-		
-		// close all current readers
-		for(ChunkReader reader : this.chunkReaders) {
-			// start closing as well
-			reader.close();
+		// close all chunk writers and readers - writers will clean up their cache
+		for(ChunkIO chunk : this.chunks.values()) {
+			chunk.close();
 		}
 		
 		// write the metadata
@@ -426,18 +1453,16 @@ public class Snowpack {
 	 * 
 	 * @throws IOException
 	 */
-	private void writeCurrentMetadata() throws IOException {
+	private synchronized void writeCurrentMetadata() throws IOException {
 		// read the info chunks
 		List<ChunkInfo> infos = new ArrayList<ChunkInfo>();
 		
 		// update the meta object
-		// read all data from all chunks
-		for(ChunkReader reader : this.chunkReaders) {
-			infos.add(reader.getChunkInfo());
+		// read all data from all chunks - readers and writers
+		for(ChunkIO chunk : this.chunks.values()) {
+			infos.add(chunk.getChunkInfo());
 		}
-		
-		// get chunk writer's chunk info
-		infos.add(this.chunkWriter.get().getChunkInfo());
+		Collections.sort(infos);
 		
 		// update meta
 		SnowpackMeta newMeta = new SnowpackMeta();
@@ -463,6 +1488,34 @@ public class Snowpack {
 		return new File(this.baseDirectory, SnowpackConstants.SNOWFLAKE_FILENAME_PREFIX + index + SnowpackConstants.SNOWFLAKE_FILENAME_SUFFIX);
 	}
 
+	/**
+	 * Open the metadata store for the configured engine. A snowpack whose
+	 * metadata was written by the other engine is refused, as none of its
+	 * flakes would be found - recover it to move it over.
+	 * 
+	 * @return
+	 */
+	private MetadataStore createMetadataStore() {
+		File leveldb = new File(this.baseDirectory, SnowpackConstants.SNOWPACK_METADATA_DIRECTORY);
+		File index = new File(this.baseDirectory, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY);
+		
+		switch(this.configuration.metadataEngine) {
+			case OFF_HEAP_INDEX:
+				if(leveldb.exists()) {
+					throw new IllegalStateException("Snowpack metadata is stored in LevelDB, cannot open with the off-heap index");
+				}
+				
+				return new OffHeapMetadataIndex(this.baseDirectory, this.configuration);
+				
+			default:
+				if(index.exists()) {
+					throw new IllegalStateException("Snowpack metadata is stored in the off-heap index, cannot open with LevelDB");
+				}
+				
+				return new SnowpackMetadataDB(this.baseDirectory, this.configuration);
+		}
+	}
+	
 	/**
 	 * Load the metadata information from the info file. The file
 	 * formnat is plain JSON format of the {@link SnowpackMeta} object
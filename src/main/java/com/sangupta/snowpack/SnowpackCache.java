@@ -23,13 +23,31 @@ package com.sangupta.snowpack;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 import com.sangupta.snowpack.domain.Flake;
+import com.sangupta.snowpack.domain.SnowpackCacheStats;
+import com.sangupta.snowpack.domain.SnowpackConfig;
 
 /**
- * Caching class for snowpack using Google Guava library.
+ * Caching class for snowpack using Google Guava library. The cache is bounded
+ * by the total number of flake bytes it holds. Once full, a new flake is only
+ * admitted if it has been requested often enough recently, as estimated by a
+ * {@link FrequencySketch} - this way a single large scan cannot flush out the
+ * working set.
+ * 
+ * If enabled, flakes evicted from the on-heap cache drop into an
+ * {@link OffHeapFlakeCache} tier, and are promoted back when read again.
+ * 
+ * A flake read from disk is put in the cache along with the stamp taken before
+ * the read started. Removing a flake bumps its stamp, so that a read that
+ * raced with a save never leaves the older bytes behind in the cache.
  * 
  * @author sangupta
  *
@@ -42,25 +60,123 @@ public class SnowpackCache implements Closeable {
 	 */
 	private final Cache<String, Flake> GLOBAL_FLAKE_CACHE;
 
+	/**
+	 * Number of stamps - flakes are spread across them by the hash of their name
+	 */
+	private static final int STAMPS = 4096;
+
 	/**
 	 * Defines if caching is enabled and should be used or not
 	 */
 	private final boolean cachingEnabled;
 	
+	/**
+	 * The second, off-heap tier - <code>null</code> if disabled
+	 */
+	private final OffHeapFlakeCache offHeapCache;
+	
+	/**
+	 * Maximum number of flake bytes to hold in the cache
+	 */
+	private final long maxBytesInReadCache;
+	
+	/**
+	 * Minimum estimated access frequency for a flake to be admitted in a full cache
+	 */
+	private final int admissionFrequency;
+	
+	/**
+	 * Keeps track of the recent access frequency of flakes
+	 */
+	private final FrequencySketch sketch;
+	
+	/**
+	 * Bumped every time a flake is removed from the cache
+	 */
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+	
+	/**
+	 * Total number of flake bytes currently in the cache
+	 */
+	private final AtomicLong weightedSize = new AtomicLong();
+	
+	/**
+	 * Number of cache hits
+	 */
+	private final AtomicLong hitCount = new AtomicLong();
+	
+	/**
+	 * Number of cache misses
+	 */
+	private final AtomicLong missCount = new AtomicLong();
+	
+	/**
+	 * Number of cache hits served from the off-heap tier
+	 */
+	private final AtomicLong offHeapHitCount = new AtomicLong();
+	
+	/**
+	 * Number of flakes evicted from the cache
+	 */
+	private final AtomicLong evictionCount = new AtomicLong();
+	
+	/**
+	 * Number of flakes refused by the admission policy
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+	
 	/**
 	 * Constructor that creates a new caching instance for all chunk
 	 * readers.
 	 * 
-	 * @param cachingEnabled
+	 * @param config
 	 */
-	public SnowpackCache(boolean cachingEnabled, final int maxEntriesInReadCache) {
-		this.cachingEnabled = cachingEnabled;
+	public SnowpackCache(SnowpackConfig config) {
+		this.cachingEnabled = config.readCachingEnabled;
+		this.maxBytesInReadCache = config.maxBytesInReadCache;
+		this.admissionFrequency = config.readCacheAdmissionFrequency;
+		
+		if(cachingEnabled && config.offHeapCachingEnabled) {
+			this.offHeapCache = new OffHeapFlakeCache(config.maxBytesInOffHeapCache, config.offHeapSlabSize);
+		} else {
+			this.offHeapCache = null;
+		}
 		
 		if(cachingEnabled) {
+			this.sketch = new FrequencySketch(config.maxEntriesInReadCache);
+			
+			// the weight bound is split across the segments of the cache - the
+			// admission check works against the total weight of all of them
 			GLOBAL_FLAKE_CACHE = CacheBuilder.newBuilder()
-											.maximumSize(maxEntriesInReadCache)  // keep only last 10000 entries in cache
+											.maximumWeight(config.maxBytesInReadCache)  // bound by the flake bytes held
+											.weigher(new Weigher<String, Flake>() {
+												
+												@Override
+												public int weigh(String flakeName, Flake flake) {
+													return flake.length;
+												}
+												
+											})
+											.removalListener(new RemovalListener<String, Flake>() {
+												
+												@Override
+												public void onRemoval(RemovalNotification<String, Flake> notification) {
+													weightedSize.addAndGet(-notification.getValue().length);
+													
+													if(notification.wasEvicted()) {
+														evictionCount.incrementAndGet();
+														
+														// demote to the off-heap tier
+														if(offHeapCache != null) {
+															offHeapCache.put(notification.getValue());
+														}
+													}
+												}
+												
+											})
 											.build();
 		} else {
+			this.sketch = null;
 			GLOBAL_FLAKE_CACHE = null;
 		}
 	}
@@ -73,10 +189,15 @@ public class SnowpackCache implements Closeable {
 		if(GLOBAL_FLAKE_CACHE != null) {
 			GLOBAL_FLAKE_CACHE.invalidateAll();
 		}
+		
+		if(this.offHeapCache != null) {
+			this.offHeapCache.clear();
+		}
 	}
 	
 	/**
-	 * Check if a flake is contained in the cache or not.
+	 * Check if a flake is contained in the cache or not. This does not
+	 * count as an access of the flake.
 	 * 
 	 * @param flakeName
 	 * @return
@@ -87,21 +208,53 @@ public class SnowpackCache implements Closeable {
 		}
 		
 		Flake flake = GLOBAL_FLAKE_CACHE.getIfPresent(flakeName);
-		return flake != null;
+		if(flake != null) {
+			return true;
+		}
+		
+		return this.offHeapCache != null && this.offHeapCache.containsKey(flakeName);
 	}
 
 	/**
-	 * Get the flake with the name.
+	 * Get the flake with the name. The access is recorded so that the flake
+	 * may be admitted to the cache when read from disk.
 	 * 
 	 * @param flakeName
-	 * @return
+	 * @return the flake, or <code>null</code> if not in cache
 	 */
 	public Flake get(String flakeName) {
-		return GLOBAL_FLAKE_CACHE.getIfPresent(flakeName);
+		if(!this.cachingEnabled) {
+			return null;
+		}
+		
+		this.sketch.increment(flakeName);
+		
+		Flake flake = GLOBAL_FLAKE_CACHE.getIfPresent(flakeName);
+		if(flake != null) {
+			this.hitCount.incrementAndGet();
+			return flake;
+		}
+		
+		// check the off-heap tier and promote the flake back
+		if(this.offHeapCache != null) {
+			flake = this.offHeapCache.take(flakeName);
+			if(flake != null) {
+				this.hitCount.incrementAndGet();
+				this.offHeapHitCount.incrementAndGet();
+				
+				this.weightedSize.addAndGet(flake.length);
+				GLOBAL_FLAKE_CACHE.put(flakeName, flake);
+				return flake;
+			}
+		}
+		
+		this.missCount.incrementAndGet();
+		return null;
 	}
 
 	/**
-	 * Put the flake in the cache.
+	 * Put the flake in the cache. Once the cache is full, the flake is
+	 * admitted only if it has been accessed frequently enough.
 	 * 
 	 * @param flake
 	 */
@@ -110,13 +263,63 @@ public class SnowpackCache implements Closeable {
 			return;
 		}
 		
-		if(flake == null) {
+		// buffer-backed flakes are weighed by their length all the same
+		if(flake == null || (flake.bytes == null && flake.buffer == null)) {
 			return;
 		}
 		
+		// admission check
+		if(this.weightedSize.get() + flake.length > this.maxBytesInReadCache) {
+			if(this.sketch.frequency(flake.flakeName) < this.admissionFrequency) {
+				this.rejectedCount.incrementAndGet();
+				return;
+			}
+		}
+		
+		this.weightedSize.addAndGet(flake.length);
 		GLOBAL_FLAKE_CACHE.put(flake.flakeName, flake);
 	}
 
+	/**
+	 * Return the current stamp of the given flake. This must be taken before
+	 * the flake is read from disk, and passed on to {@link #put(Flake, long)}.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	public long stamp(String flakeName) {
+		return this.stamps.get(stampIndex(flakeName));
+	}
+	
+	/**
+	 * Put the flake read from disk in the cache, unless it was removed since
+	 * the given stamp was taken - in which case the flake may have been saved
+	 * again, and the bytes read may be stale.
+	 * 
+	 * @param flake
+	 * @param stamp
+	 */
+	public void put(Flake flake, long stamp) {
+		if(!this.cachingEnabled || flake == null) {
+			return;
+		}
+		
+		if(stamp(flake.flakeName) != stamp) {
+			return;
+		}
+		
+		put(flake);
+		
+		// a removal in between may have missed the flake just put
+		if(stamp(flake.flakeName) != stamp) {
+			GLOBAL_FLAKE_CACHE.asMap().remove(flake.flakeName, flake);
+			
+			if(this.offHeapCache != null) {
+				this.offHeapCache.remove(flake.flakeName);
+			}
+		}
+	}
+
 	/**
 	 * Remove the flake from the cache.
 	 * 
@@ -127,12 +330,40 @@ public class SnowpackCache implements Closeable {
 			return;
 		}
 		
-		Flake flake = this.get(flakeName);
-		if(flake == null) {
-			return;
+		// reads that started before this are not cached anymore
+		this.stamps.incrementAndGet(stampIndex(flakeName));
+		
+		GLOBAL_FLAKE_CACHE.invalidate(flakeName);
+		
+		if(this.offHeapCache != null) {
+			this.offHeapCache.remove(flakeName);
 		}
+	}
+	
+	private static int stampIndex(String flakeName) {
+		return (flakeName.hashCode() & Integer.MAX_VALUE) % STAMPS;
+	}
+	
+	/**
+	 * Return the current statistics of this cache.
+	 * 
+	 * @return
+	 */
+	public SnowpackCacheStats getStats() {
+		SnowpackCacheStats stats = new SnowpackCacheStats();
+		
+		stats.hitCount = this.hitCount.get();
+		stats.missCount = this.missCount.get();
+		stats.evictionCount = this.evictionCount.get();
+		stats.rejectedCount = this.rejectedCount.get();
+		stats.weightedSize = this.weightedSize.get();
 		
-		GLOBAL_FLAKE_CACHE.invalidate(flake);
+		if(this.offHeapCache != null) {
+			stats.offHeapHitCount = this.offHeapHitCount.get();
+			stats.offHeapWeightedSize = this.offHeapCache.getWeightedSize();
+		}
+		
+		return stats;
 	}
 
 	/**
@@ -141,8 +372,6 @@ public class SnowpackCache implements Closeable {
 	 */
 	@Override
 	public void close() throws IOException {
-		if(GLOBAL_FLAKE_CACHE != null) {
-			GLOBAL_FLAKE_CACHE.invalidateAll();
-		}
+		this.emptyCache();
 	}
 }	
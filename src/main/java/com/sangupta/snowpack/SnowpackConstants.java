@@ -54,5 +54,66 @@ public interface SnowpackConstants {
 	public static final String SNOWPACK_INFO_FILENAME = "snowpack.info";
 
 	public static final String SNOWPACK_METADATA_DIRECTORY = "metadata";
+	
+	/**
+	 * The prefix of the directory of each shard, within the metadata directory,
+	 * when the metadata is sharded
+	 */
+	public static final String SNOWPACK_METADATA_SHARD_PREFIX = "shard-";
+	
+	/**
+	 * The file, within the metadata directory, that records the number of
+	 * shards when the metadata is sharded
+	 */
+	public static final String SNOWPACK_METADATA_SHARD_COUNT_FILENAME = "shards";
+	
+	/**
+	 * The directory in which the off-heap metadata index keeps its segments
+	 */
+	public static final String SNOWPACK_METADATA_INDEX_DIRECTORY = "metadata-index";
+	
+	/**
+	 * The directory in which the metadata snapshot and its journal are kept
+	 */
+	public static final String SNOWPACK_METADATA_SNAPSHOT_DIRECTORY = "metadata-snapshot";
+	
+	/**
+	 * The file holding the metadata snapshot
+	 */
+	public static final String SNOWPACK_METADATA_SNAPSHOT_FILENAME = "snapshot.dat";
+	
+	/**
+	 * The directory in which the content-addressed dedup index is kept
+	 */
+	public static final String SNOWPACK_DEDUP_DIRECTORY = "dedup";
+	
+	/**
+	 * The file in which the Bloom filter over flake names is saved on close
+	 */
+	public static final String SNOWPACK_BLOOM_FILTER_FILENAME = "snowpack.bloom";
+	
+	/**
+	 * Magic number that marks the trailer of a sealed chunk's footer index
+	 * whose entries all point into the chunk itself
+	 */
+	public static final int CHUNK_FOOTER_MAGIC = 0x536e4678;
+	
+	/**
+	 * Magic number that marks the trailer of a footer index whose entries carry
+	 * the full location of the flake data, which may be in another chunk
+	 */
+	public static final int CHUNK_FOOTER_LOCATION_MAGIC = 0x536e4679;
+	
+	/**
+	 * Creation time written into the header of a record whose contents are still
+	 * being streamed in - such records are skipped when scanning a chunk
+	 */
+	public static final long INCOMPLETE_RECORD_MARKER = -1l;
+	
+	/**
+	 * Codec ID written into a record that holds no data of its own, but the
+	 * location of a record with identical data - written for deduplicated flakes
+	 */
+	public static final byte REFERENCE_RECORD_MARKER = -1;
 
 }
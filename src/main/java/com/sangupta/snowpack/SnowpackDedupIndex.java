@@ -0,0 +1,328 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.sangupta.snowpack.domain.FlakeMetadata;
+
+/**
+ * Content-addressed index of flake data, used to store identical flakes only
+ * once. The index maps the hash of the flake data to the location of the record
+ * that holds it, and keeps a count of the flakes that refer to each such
+ * location. A location whose count drops to zero is no longer indexed and its
+ * space can be reclaimed.
+ * 
+ * Streaming saves are not deduplicated and always write their data. A flake
+ * saved as a reference gets a small reference record in the chunk, holding the
+ * location of the shared record, so that {@link SnowpackRecover} can rebuild
+ * its metadata, and this index from it. Every save, deduplicated or not, must
+ * hold the lock returned by {@link #getLock(String)} for the flake name while
+ * it reads the previous location of the flake, writes the flake and releases
+ * the previous location - so that two saves of the same flake never release
+ * the same location twice. Saves of identical data under different names may
+ * race to index it, in which case both records are kept.
+ * 
+ * @author sangupta
+ *
+ */
+public class SnowpackDedupIndex implements Closeable {
+	
+	/**
+	 * Prefix of the keys that map a hash to a location
+	 */
+	private static final byte HASH_KEY = 'h';
+	
+	/**
+	 * Prefix of the keys that map a location to its reference count and hash
+	 */
+	private static final byte LOCATION_KEY = 'l';
+	
+	/**
+	 * The reference to the database
+	 */
+	private final DB db;
+	
+	/**
+	 * Locks that serialize the saves of flakes with the same name
+	 */
+	private final Striped<Lock> locks = Striped.lock(64);
+	
+	/**
+	 * Open or create the index in the given base location.
+	 * 
+	 * @param baseLocation
+	 */
+	public SnowpackDedupIndex(File baseLocation) {
+		Options options = new Options();
+		options.compressionType(CompressionType.NONE); // hashes do not compress
+		options.createIfMissing(true);
+		
+		File file = new File(baseLocation, SnowpackConstants.SNOWPACK_DEDUP_DIRECTORY);
+		
+		try {
+			this.db = new Iq80DBFactory().open(file, options);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open/create dedup index");
+		}
+	}
+	
+	/**
+	 * Compute the content hash of the given flake data.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public byte[] hash(byte[] bytes) {
+		return Hashing.sha256().hashBytes(bytes).asBytes();
+	}
+	
+	/**
+	 * Return the lock to be held while saving the flake with the given name.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	public Lock getLock(String flakeName) {
+		return this.locks.get(flakeName);
+	}
+	
+	/**
+	 * Return the locks to be held while saving all the flakes with the given
+	 * names. The locks are returned in an order that is the same for all
+	 * callers, and must be acquired in that order.
+	 * 
+	 * @param flakeNames
+	 * @return
+	 */
+	public List<Lock> getLocks(Collection<String> flakeNames) {
+		List<Lock> locks = new ArrayList<Lock>();
+		for(Lock lock : this.locks.bulkGet(flakeNames)) {
+			locks.add(lock);
+		}
+		
+		return locks;
+	}
+	
+	/**
+	 * Find the record that holds data with the given hash, and if found, add
+	 * a reference to it for the given flake.
+	 * 
+	 * @param hash
+	 * @param flakeName
+	 * @return the metadata for the flake pointing to the existing record, or
+	 *         <code>null</code> if no such record exists
+	 */
+	public synchronized FlakeMetadata addReference(byte[] hash, String flakeName) {
+		byte[] location = this.db.get(hashKey(hash));
+		if(location == null) {
+			return null;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(location);
+		int chunk = buffer.getInt();
+		long offset = buffer.getLong();
+		int length = buffer.getInt();
+		int headerLength = buffer.getInt();
+		
+		byte[] key = locationKey(chunk, offset);
+		byte[] count = this.db.get(key);
+		if(count == null) {
+			return null;
+		}
+		
+		ByteBuffer.wrap(count).putInt(0, ByteBuffer.wrap(count).getInt(0) + 1);
+		this.db.put(key, count);
+		
+		return new FlakeMetadata(flakeName, length, chunk, offset, headerLength);
+	}
+	
+	/**
+	 * Add a reference for the given flake to the record it points to, if that
+	 * record is indexed. Used by {@link SnowpackRecover} to rebuild the counts.
+	 * 
+	 * @param flakeMetadata
+	 * @return <code>true</code> if the record is indexed
+	 */
+	public synchronized boolean addReference(FlakeMetadata flakeMetadata) {
+		byte[] key = locationKey(flakeMetadata.chunk, flakeMetadata.offset);
+		byte[] count = this.db.get(key);
+		if(count == null) {
+			return false;
+		}
+		
+		ByteBuffer.wrap(count).putInt(0, ByteBuffer.wrap(count).getInt(0) + 1);
+		this.db.put(key, count);
+		return true;
+	}
+	
+	/**
+	 * Index the record that was just written for data with the given hash. The
+	 * record starts with a single reference.
+	 * 
+	 * @param hash
+	 * @param flakeMetadata
+	 */
+	public synchronized void addLocation(byte[] hash, FlakeMetadata flakeMetadata) {
+		byte[] hashKey = hashKey(hash);
+		byte[] locationKey = locationKey(flakeMetadata.chunk, flakeMetadata.offset);
+		
+		ByteBuffer count = ByteBuffer.allocate(4 + hash.length);
+		count.putInt(1);
+		count.put(hash);
+		
+		WriteBatch batch = this.db.createWriteBatch();
+		try {
+			// a concurrent save of the same data may have got here first
+			if(this.db.get(hashKey) == null) {
+				ByteBuffer location = ByteBuffer.allocate(20);
+				location.putInt(flakeMetadata.chunk);
+				location.putLong(flakeMetadata.offset);
+				location.putInt(flakeMetadata.length);
+				location.putInt(flakeMetadata.headerLength);
+				
+				batch.put(hashKey, location.array());
+			}
+			
+			batch.put(locationKey, count.array());
+			this.db.write(batch);
+		} finally {
+			closeQuietly(batch);
+		}
+	}
+	
+	/**
+	 * Drop the reference held by a flake to the record at the given location,
+	 * when the flake is overwritten or deleted. Locations not in the index are
+	 * ignored.
+	 * 
+	 * @param flakeMetadata
+	 */
+	public synchronized void release(FlakeMetadata flakeMetadata) {
+		if(flakeMetadata == null) {
+			return;
+		}
+		
+		byte[] locationKey = locationKey(flakeMetadata.chunk, flakeMetadata.offset);
+		byte[] count = this.db.get(locationKey);
+		if(count == null) {
+			return;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(count);
+		int references = buffer.getInt() - 1;
+		if(references > 0) {
+			buffer.putInt(0, references);
+			this.db.put(locationKey, count);
+			return;
+		}
+		
+		// no flake refers to this record anymore
+		byte[] hash = new byte[count.length - 4];
+		buffer.get(hash);
+		
+		WriteBatch batch = this.db.createWriteBatch();
+		try {
+			byte[] hashKey = hashKey(hash);
+			byte[] location = this.db.get(hashKey);
+			if(location != null) {
+				ByteBuffer indexed = ByteBuffer.wrap(location);
+				if(indexed.getInt() == flakeMetadata.chunk && indexed.getLong() == flakeMetadata.offset) {
+					batch.delete(hashKey);
+				}
+			}
+			
+			batch.delete(locationKey);
+			this.db.write(batch);
+		} finally {
+			closeQuietly(batch);
+		}
+	}
+	
+	/**
+	 * Return the number of flakes referring to the record at the given location.
+	 * 
+	 * @param chunk
+	 * @param offset
+	 * @return
+	 */
+	public synchronized int getReferenceCount(int chunk, long offset) {
+		byte[] count = this.db.get(locationKey(chunk, offset));
+		if(count == null) {
+			return 0;
+		}
+		
+		return ByteBuffer.wrap(count).getInt();
+	}
+	
+	private static byte[] hashKey(byte[] hash) {
+		ByteBuffer key = ByteBuffer.allocate(1 + hash.length);
+		key.put(HASH_KEY);
+		key.put(hash);
+		return key.array();
+	}
+	
+	private static byte[] locationKey(int chunk, long offset) {
+		ByteBuffer key = ByteBuffer.allocate(13);
+		key.put(LOCATION_KEY);
+		key.putInt(chunk);
+		key.putLong(offset);
+		return key.array();
+	}
+	
+	private static void closeQuietly(WriteBatch batch) {
+		try {
+			batch.close();
+		} catch (IOException e) {
+			// eat up
+		}
+	}
+
+	/**
+	 * Close the index.
+	 * 
+	 */
+	@Override
+	public void close() {
+		try {
+			this.db.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+}
@@ -21,26 +21,57 @@
 
 package com.sangupta.snowpack;
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
 
 import org.iq80.leveldb.CompressionType;
 import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 import org.iq80.leveldb.impl.Iq80DBFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sangupta.snowpack.domain.DurabilityMode;
 import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.SnowpackConfig;
 
 /**
- * Handles the metadata DB.
+ * Handles the metadata DB, storing the metadata in LevelDB. The metadata may be
+ * split by the hash of the flake name across several LevelDB instances, each
+ * with its own memtable, write lock and compaction thread. An optional Bloom filter over all flake names sits
+ * in front of the database to answer lookups for missing flakes without
+ * touching LevelDB. The filter is saved on close and read back on open - if
+ * it was not saved (say, after a crash) it is rebuilt from the database.
+ * 
+ * If enabled, a {@link MetadataSnapshot} of the database is taken periodically
+ * and mapped on open, so that lookups are answered from it while the caches
+ * are still cold. Flakes changed after the snapshot was taken are listed in a
+ * {@link MetadataJournal} and are always read from the database.
  * 
  * @author sangupta
  *
  */
-public class SnowpackMetadataDB implements Closeable {
+public class SnowpackMetadataDB implements MetadataStore {
 	
 	/**
 	 * Map that keeps all meta data in memory to speed up access
@@ -48,9 +79,10 @@ public class SnowpackMetadataDB implements Closeable {
 	private final Cache<String, FlakeMetadata> availableFlakes;
 	
 	/**
-	 * The reference to the database
+	 * The database shards - flakes are spread across them by the hash of their
+	 * name
 	 */
-	private final DB db;
+	private final DB[] shards;
 	
 	/**
 	 * Defines if caching of values is enabled
@@ -58,11 +90,114 @@ public class SnowpackMetadataDB implements Closeable {
 	private final boolean readCachingEnabled;
 	
 	/**
-	 * Default constructor - intialize the database as well.
+	 * The options used for all writes to the database
+	 */
+	private final WriteOptions writeOptions;
+	
+	/**
+	 * The Bloom filter over all flake names - <code>null</code> if disabled
+	 */
+	private final FlakeBloomFilter bloomFilter;
+	
+	/**
+	 * The file to which the Bloom filter is saved on close
+	 */
+	private final File bloomFilterFile;
+	
+	/**
+	 * The directory holding the snapshot and its journal
+	 */
+	private final File snapshotDirectory;
+	
+	/**
+	 * The journal of flakes changed since the last snapshot - <code>null</code>
+	 * if snapshots are disabled
+	 */
+	private final MetadataJournal journal;
+	
+	/**
+	 * The snapshot being read from, along with the flakes changed since
+	 */
+	private volatile SnapshotView snapshotView;
+	
+	/**
+	 * The flakes changed since the journal was last rotated
+	 */
+	private volatile Set<String> recentChanges;
+	
+	/**
+	 * Held by writers to the journal, and exclusively when the journal is
+	 * rotated or a new snapshot is installed
+	 */
+	private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Takes the periodic snapshots - <code>null</code> if snapshots are disabled
+	 */
+	private final ScheduledExecutorService snapshotExecutor;
+	
+	/**
+	 * Default constructor - intialize the database as well. No Bloom filter is used.
 	 * 
 	 * @param baseLocation
 	 */
 	public SnowpackMetadataDB(File baseLocation, boolean readCachingEnabled, final int maxEntriesInMetadataCache) {
+		this(baseLocation, readCachingEnabled, maxEntriesInMetadataCache, 1);
+	}
+	
+	/**
+	 * Intialize the database split into the given number of shards. No Bloom
+	 * filter is used.
+	 * 
+	 * @param baseLocation
+	 * @param readCachingEnabled
+	 * @param maxEntriesInMetadataCache
+	 * @param shards
+	 */
+	public SnowpackMetadataDB(File baseLocation, boolean readCachingEnabled, final int maxEntriesInMetadataCache, int shards) {
+		this(baseLocation, readCachingEnabled, maxEntriesInMetadataCache, shards, false, 0, 0, false, false, 0);
+	}
+	
+	/**
+	 * Intialize the database as per the given configuration.
+	 * 
+	 * @param baseLocation
+	 * @param config
+	 */
+	public SnowpackMetadataDB(File baseLocation, SnowpackConfig config) {
+		this(baseLocation, config.readCachingEnabled, config.maxEntriesInMetadataCache, config.metadataShards, config.bloomFilterEnabled, config.bloomFilterExpectedFlakes, config.bloomFilterFalsePositiveRate,
+			 config.durabilityMode == DurabilityMode.BATCH || config.durabilityMode == DurabilityMode.FLAKE, config.metadataSnapshotEnabled, config.metadataSnapshotIntervalMillis);
+	}
+	
+	/**
+	 * Intialize the database as well as the Bloom filter in front of it.
+	 * 
+	 * @param baseLocation
+	 * @param readCachingEnabled
+	 * @param maxEntriesInMetadataCache
+	 * @param shards
+	 *            the number of LevelDB instances the metadata is split into
+	 * @param bloomFilterEnabled
+	 * @param bloomFilterExpectedFlakes
+	 * @param bloomFilterFalsePositiveRate
+	 * @param syncWrites
+	 *            whether every write is synced to disk before returning
+	 * @param snapshotEnabled
+	 *            whether a snapshot of the database is taken periodically
+	 * @param snapshotIntervalMillis
+	 *            the time between two snapshots
+	 */
+	public SnowpackMetadataDB(File baseLocation, boolean readCachingEnabled, final int maxEntriesInMetadataCache, int shards, boolean bloomFilterEnabled, long bloomFilterExpectedFlakes, double bloomFilterFalsePositiveRate, boolean syncWrites, boolean snapshotEnabled, long snapshotIntervalMillis) {
+		if(shards < 1) {
+			throw new IllegalArgumentException("Metadata needs at least one shard");
+		}
+		
+		// the shard of a flake depends on the number of shards
+		int existing = getShardCount(baseLocation);
+		if(existing > 0 && existing != shards) {
+			throw new IllegalStateException("Metadata is split into " + existing + " shards, not " + shards + " - run recovery to change the number of shards");
+		}
+		
 		Options options = new Options();
 		options.compressionType(CompressionType.SNAPPY);
 		options.createIfMissing(true);
@@ -73,13 +208,29 @@ public class SnowpackMetadataDB implements Closeable {
 		
 		File file = new File(baseLocation, SnowpackConstants.SNOWPACK_METADATA_DIRECTORY);
 		
+		this.shards = new DB[shards];
 		try {
-			this.db = new Iq80DBFactory().open(file, options);
+			if(shards == 1) {
+				this.shards[0] = new Iq80DBFactory().open(file, options);
+			} else {
+				// recorded before the shards are created, so that a crash half way
+				// through does not change the number of shards seen on next open
+				writeShardCount(file, shards);
+				
+				for(int index = 0; index < shards; index++) {
+					this.shards[index] = new Iq80DBFactory().open(new File(file, SnowpackConstants.SNOWPACK_METADATA_SHARD_PREFIX + index), options);
+				}
+			}
 		} catch (IOException e) {
+			for(DB db : this.shards) {
+				closeQuietly(db);
+			}
+			
 			throw new RuntimeException("Unable to open/create database");
 		}
 		
 		this.readCachingEnabled = readCachingEnabled;
+		this.writeOptions = new WriteOptions().sync(syncWrites);
 		
 		if(readCachingEnabled) {
 			this.availableFlakes = CacheBuilder.newBuilder()
@@ -88,6 +239,207 @@ public class SnowpackMetadataDB implements Closeable {
 		} else {
 			this.availableFlakes = null;
 		}
+		
+		this.bloomFilterFile = new File(baseLocation, SnowpackConstants.SNOWPACK_BLOOM_FILTER_FILENAME);
+		if(bloomFilterEnabled) {
+			this.bloomFilter = loadBloomFilter(bloomFilterExpectedFlakes, bloomFilterFalsePositiveRate);
+		} else {
+			this.bloomFilter = null;
+		}
+		
+		this.snapshotDirectory = new File(baseLocation, SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_DIRECTORY);
+		if(!snapshotEnabled) {
+			// changes made now will not be journaled - any old snapshot goes stale
+			FileUtils.deleteQuietly(this.snapshotDirectory);
+			
+			this.journal = null;
+			this.snapshotExecutor = null;
+			return;
+		}
+		
+		this.snapshotDirectory.mkdirs();
+		
+		Set<String> changes = newChangeSet();
+		try {
+			this.journal = new MetadataJournal(this.snapshotDirectory, changes);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open metadata journal", e);
+		}
+		
+		MetadataSnapshot snapshot = null;
+		File snapshotFile = new File(this.snapshotDirectory, SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_FILENAME);
+		if(snapshotFile.exists()) {
+			try {
+				snapshot = new MetadataSnapshot(snapshotFile);
+			} catch (IOException e) {
+				// read from the database till the next snapshot
+				e.printStackTrace();
+			}
+		}
+		
+		this.recentChanges = changes;
+		this.snapshotView = new SnapshotView(snapshot, changes);
+		
+		this.snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("snowpack-snapshot-%d").build());
+		this.snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					takeSnapshot();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			
+		}, snapshot == null ? 0 : snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Write a new snapshot of the database and switch lookups over to it. The
+	 * journal is rotated at the same moment the database snapshot is taken, so
+	 * that every change is either in the snapshot or in the new journal. The
+	 * older journal files are deleted once the new snapshot is in place.
+	 * Snapshots are taken one at a time, so that a periodic snapshot and one
+	 * asked for by the caller do not write the same file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void takeSnapshot() throws IOException {
+		if(this.journal == null) {
+			throw new IllegalStateException("Metadata snapshots are not enabled");
+		}
+		
+		int rotated;
+		Set<String> changes = newChangeSet();
+		Snapshot[] dbSnapshots = new Snapshot[this.shards.length];
+		
+		this.snapshotLock.writeLock().lock();
+		try {
+			rotated = this.journal.rotate();
+			this.recentChanges = changes;
+			for(int index = 0; index < this.shards.length; index++) {
+				dbSnapshots[index] = this.shards[index].getSnapshot();
+			}
+		} finally {
+			this.snapshotLock.writeLock().unlock();
+		}
+		
+		File snapshotFile = new File(this.snapshotDirectory, SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_FILENAME);
+		List<DBIterator> iterators = new ArrayList<DBIterator>(this.shards.length);
+		try {
+			for(int index = 0; index < this.shards.length; index++) {
+				DBIterator iterator = this.shards[index].iterator(new ReadOptions().snapshot(dbSnapshots[index]));
+				iterator.seekToFirst();
+				iterators.add(iterator);
+			}
+			
+			MetadataSnapshot.write(snapshotFile, FlakeIterator.merge(iterators));
+		} finally {
+			for(DBIterator iterator : iterators) {
+				iterator.close();
+			}
+			
+			for(Snapshot dbSnapshot : dbSnapshots) {
+				dbSnapshot.close();
+			}
+		}
+		
+		MetadataSnapshot snapshot = new MetadataSnapshot(snapshotFile);
+		
+		this.snapshotLock.writeLock().lock();
+		try {
+			this.snapshotView = new SnapshotView(snapshot, changes);
+		} finally {
+			this.snapshotLock.writeLock().unlock();
+		}
+		
+		this.journal.deleteUpTo(rotated);
+	}
+	
+	/**
+	 * Note the given flakes as changed since the snapshot, before their
+	 * metadata is written to the database. The caller must hold the read lock
+	 * of {@link #snapshotLock}.
+	 * 
+	 * @param flakeNames
+	 */
+	private void journal(Collection<String> flakeNames) {
+		try {
+			this.journal.append(flakeNames);
+			if(this.writeOptions.sync()) {
+				this.journal.force();
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Unable to write to metadata journal", e);
+		}
+		
+		this.snapshotView.changes.addAll(flakeNames);
+		this.recentChanges.addAll(flakeNames);
+	}
+	
+	/**
+	 * Read the flake from the snapshot, unless it changed after the snapshot
+	 * was taken.
+	 * 
+	 * @param flakeName
+	 * @return the metadata, or <code>null</code> if the snapshot cannot tell
+	 */
+	private FlakeMetadata getFromSnapshot(String flakeName) {
+		SnapshotView view = this.snapshotView;
+		if(view == null || view.snapshot == null || view.changes.contains(flakeName)) {
+			return null;
+		}
+		
+		return view.snapshot.get(flakeName);
+	}
+	
+	private static Set<String> newChangeSet() {
+		return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+	
+	/**
+	 * Read the Bloom filter saved during the last close, or rebuild it from the
+	 * database if there is none. The saved file is deleted once read, so that a
+	 * crash never leaves behind a filter that misses newer flakes.
+	 * 
+	 * @param expectedFlakes
+	 * @param falsePositiveRate
+	 * @return
+	 */
+	private FlakeBloomFilter loadBloomFilter(long expectedFlakes, double falsePositiveRate) {
+		if(this.bloomFilterFile.exists()) {
+			try {
+				FlakeBloomFilter filter = FlakeBloomFilter.readFrom(this.bloomFilterFile);
+				if(this.bloomFilterFile.delete()) {
+					return filter;
+				}
+			} catch(IOException e) {
+				// rebuild below
+			}
+			
+			this.bloomFilterFile.delete();
+		}
+		
+		FlakeBloomFilter filter = new FlakeBloomFilter(expectedFlakes, falsePositiveRate);
+		
+		for(DB db : this.shards) {
+			DBIterator iterator = db.iterator();
+			try {
+				iterator.seekToFirst();
+				while(iterator.hasNext()) {
+					filter.put(iterator.next().getKey());
+				}
+			} finally {
+				try {
+					iterator.close();
+				} catch (IOException e) {
+					// eat up
+				}
+			}
+		}
+		
+		return filter;
 	}
 	
 	/**
@@ -95,6 +447,7 @@ public class SnowpackMetadataDB implements Closeable {
 	 * on the Snowpack in trade-off of performance.
 	 * 
 	 */
+	@Override
 	public void emptyCache() {
 		if(this.availableFlakes != null) {
 			this.availableFlakes.invalidateAll();
@@ -108,11 +461,19 @@ public class SnowpackMetadataDB implements Closeable {
 	 * @param flakeName
 	 * @return
 	 */
+	@Override
 	public boolean has(String flakeName) {
 		if(flakeName == null) {
 			return false;
 		}
 		
+		byte[] key = flakeName.getBytes();
+		
+		// definitely not present?
+		if(this.bloomFilter != null && !this.bloomFilter.mightContain(key)) {
+			return false;
+		}
+		
 		// check in cache
 		if(this.readCachingEnabled) {
 			if(this.availableFlakes.getIfPresent(flakeName) != null) {
@@ -120,8 +481,13 @@ public class SnowpackMetadataDB implements Closeable {
 			}
 		}
 		
+		// check in the snapshot
+		if(getFromSnapshot(flakeName) != null) {
+			return true;
+		}
+		
 		// check in db
-		if(this.db.get(flakeName.getBytes()) != null) {
+		if(shardFor(key).get(key) != null) {
 			return true;
 		}
 		
@@ -136,12 +502,20 @@ public class SnowpackMetadataDB implements Closeable {
 	 * @param flakeName
 	 * @return
 	 */
+	@Override
 	public FlakeMetadata get(String flakeName) {
 		if(flakeName == null) {
 			return null;
 		}
 		
 		FlakeMetadata meta;
+		
+		byte[] key = flakeName.getBytes();
+		
+		// definitely not present?
+		if(this.bloomFilter != null && !this.bloomFilter.mightContain(key)) {
+			return null;
+		}
 
 		// check in cache first
 		if(this.readCachingEnabled) {
@@ -151,15 +525,18 @@ public class SnowpackMetadataDB implements Closeable {
 			}
 		}
 		
-		// check in the db
-		byte[] bytes = this.db.get(flakeName.getBytes());
-		if(bytes == null) {
-			return null;
+		// check in the snapshot, and then the db
+		meta = getFromSnapshot(flakeName);
+		if(meta == null) {
+			byte[] bytes = shardFor(key).get(key);
+			if(bytes == null) {
+				return null;
+			}
+			
+			// deserialize object
+			meta = new FlakeMetadata(flakeName, bytes);
 		}
 		
-		// deserialize object
-		meta = new FlakeMetadata(flakeName, bytes);
-		
 		// put in cache
 		if(this.readCachingEnabled) {
 			if(meta != null) {
@@ -176,14 +553,32 @@ public class SnowpackMetadataDB implements Closeable {
 	 * 
 	 * @param flakeMetadata
 	 */
+	@Override
 	public void save(FlakeMetadata flakeMetadata) {
 		if(flakeMetadata == null) {
 			return;
 		}
 		
+		byte[] key = flakeMetadata.flakeName.getBytes();
+		
+		// the filter must know about the flake before any reader can find it
+		if(this.bloomFilter != null) {
+			this.bloomFilter.put(key);
+		}
+		
 		// serialize the object
 		byte[] bytes = flakeMetadata.asBytes();
-		this.db.put(flakeMetadata.flakeName.getBytes(), bytes);
+		if(this.journal == null) {
+			shardFor(key).put(key, bytes, this.writeOptions);
+		} else {
+			this.snapshotLock.readLock().lock();
+			try {
+				journal(Collections.singleton(flakeMetadata.flakeName));
+				shardFor(key).put(key, bytes, this.writeOptions);
+			} finally {
+				this.snapshotLock.readLock().unlock();
+			}
+		}
 		
 		// put this in cache
 		if(this.readCachingEnabled) {
@@ -191,18 +586,122 @@ public class SnowpackMetadataDB implements Closeable {
 		}
 	}
 	
+	/**
+	 * Save all the given flakes into the database using a single write batch
+	 * per shard. The entries are also added to the in-memory cache.
+	 * 
+	 * The batch of each shard is written atomically, but the batches of
+	 * different shards are written one after the other - a crash in between
+	 * leaves only some of the flakes saved. Their records are in the chunks
+	 * already, and {@link SnowpackRecover} restores the rest.
+	 * 
+	 * @param flakeMetadatas
+	 */
+	@Override
+	public void saveAll(Collection<FlakeMetadata> flakeMetadatas) {
+		if(flakeMetadatas == null || flakeMetadatas.isEmpty()) {
+			return;
+		}
+		
+		WriteBatch[] batches = new WriteBatch[this.shards.length];
+		try {
+			for(FlakeMetadata flakeMetadata : flakeMetadatas) {
+				byte[] key = flakeMetadata.flakeName.getBytes();
+				
+				// the filter must know about the flake before any reader can find it
+				if(this.bloomFilter != null) {
+					this.bloomFilter.put(key);
+				}
+				
+				int shard = shardIndex(key);
+				if(batches[shard] == null) {
+					batches[shard] = this.shards[shard].createWriteBatch();
+				}
+				
+				batches[shard].put(key, flakeMetadata.asBytes());
+			}
+			
+			if(this.journal == null) {
+				writeBatches(batches);
+			} else {
+				List<String> flakeNames = new ArrayList<String>(flakeMetadatas.size());
+				for(FlakeMetadata flakeMetadata : flakeMetadatas) {
+					flakeNames.add(flakeMetadata.flakeName);
+				}
+				
+				this.snapshotLock.readLock().lock();
+				try {
+					journal(flakeNames);
+					writeBatches(batches);
+				} finally {
+					this.snapshotLock.readLock().unlock();
+				}
+			}
+		} finally {
+			for(WriteBatch batch : batches) {
+				if(batch == null) {
+					continue;
+				}
+				
+				try {
+					batch.close();
+				} catch (IOException e) {
+					// eat up
+				}
+			}
+		}
+		
+		// put these in cache
+		if(this.readCachingEnabled) {
+			for(FlakeMetadata flakeMetadata : flakeMetadatas) {
+				this.availableFlakes.put(flakeMetadata.flakeName, flakeMetadata);
+			}
+		}
+	}
+	
+	/**
+	 * List flakes from the database, which keeps its keys sorted - the keys of
+	 * all shards are merged. The cache and the snapshot are not consulted.
+	 * 
+	 * @param prefix
+	 * @param pageToken
+	 * @return
+	 */
+	@Override
+	public FlakeIterator list(String prefix, String pageToken) {
+		List<DBIterator> iterators = new ArrayList<DBIterator>(this.shards.length);
+		for(DB db : this.shards) {
+			iterators.add(db.iterator());
+		}
+		
+		return new FlakeIterator(iterators, prefix, pageToken);
+	}
+	
 	/**
 	 * Remove the entry from the DB and the cache.
 	 * 
 	 * @param flakeName
 	 */
+	@Override
 	public void remove(String flakeName) {
 		if(flakeName == null) {
 			return;
 		}
 		
+		byte[] key = flakeName.getBytes();
+		
 		// delete from DB
-		this.db.delete(flakeName.getBytes());
+		if(this.journal == null) {
+			shardFor(key).delete(key, this.writeOptions);
+		} else {
+			this.snapshotLock.readLock().lock();
+			try {
+				journal(Collections.singleton(flakeName));
+				shardFor(key).delete(key, this.writeOptions);
+			} finally {
+				this.snapshotLock.readLock().unlock();
+			}
+		}
 		
 		// remove from cache
 		if(this.readCachingEnabled) {
@@ -216,10 +715,151 @@ public class SnowpackMetadataDB implements Closeable {
 	 */
 	@Override
 	public void close() {
+		// let a snapshot being taken finish
+		if(this.snapshotExecutor != null) {
+			this.snapshotExecutor.shutdown();
+			try {
+				this.snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			this.journal.close();
+		}
+		
+		for(DB db : this.shards) {
+			try {
+				db.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		// save the filter for a faster start next time
+		if(this.bloomFilter != null) {
+			File temp = new File(this.bloomFilterFile.getParentFile(), this.bloomFilterFile.getName() + ".tmp");
+			try {
+				this.bloomFilter.writeTo(temp);
+				if(!temp.renameTo(this.bloomFilterFile)) {
+					temp.delete();
+				}
+			} catch(IOException e) {
+				temp.delete();
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Return the number of shards of the metadata stored in the given base
+	 * location - <code>1</code> for a single, unsharded database, and
+	 * <code>0</code> if there is no metadata yet.
+	 * 
+	 * @param baseLocation
+	 * @return
+	 */
+	public static int getShardCount(File baseLocation) {
+		File directory = new File(baseLocation, SnowpackConstants.SNOWPACK_METADATA_DIRECTORY);
+		
+		File countFile = new File(directory, SnowpackConstants.SNOWPACK_METADATA_SHARD_COUNT_FILENAME);
+		if(countFile.exists()) {
+			try {
+				return Integer.parseInt(FileUtils.readFileToString(countFile).trim());
+			} catch(IOException e) {
+				throw new RuntimeException("Unable to read number of metadata shards", e);
+			}
+		}
+		
+		// sharded metadata written before the number of shards was recorded
+		File[] files = directory.listFiles();
+		if(files == null || files.length == 0) {
+			return 0;
+		}
+		
+		int shards = 0;
+		for(File file : files) {
+			if(file.isDirectory() && file.getName().startsWith(SnowpackConstants.SNOWPACK_METADATA_SHARD_PREFIX)) {
+				shards++;
+			}
+		}
+		
+		return shards == 0 ? 1 : shards;
+	}
+	
+	/**
+	 * Record the number of shards in the metadata directory, if not done yet.
+	 * The file is replaced atomically so that it is never seen half written.
+	 * 
+	 * @param directory
+	 * @param shards
+	 * @throws IOException
+	 */
+	private static void writeShardCount(File directory, int shards) throws IOException {
+		File countFile = new File(directory, SnowpackConstants.SNOWPACK_METADATA_SHARD_COUNT_FILENAME);
+		if(countFile.exists()) {
+			return;
+		}
+		
+		File temp = new File(directory, SnowpackConstants.SNOWPACK_METADATA_SHARD_COUNT_FILENAME + ".tmp");
+		FileUtils.writeStringToFile(temp, String.valueOf(shards));
+		if(!temp.renameTo(countFile)) {
+			throw new IOException("Unable to save number of metadata shards");
+		}
+	}
+	
+	/**
+	 * Write the non-empty batches, one per shard.
+	 * 
+	 * @param batches
+	 */
+	private void writeBatches(WriteBatch[] batches) {
+		for(int index = 0; index < batches.length; index++) {
+			if(batches[index] != null) {
+				this.shards[index].write(batches[index], this.writeOptions);
+			}
+		}
+	}
+	
+	private DB shardFor(byte[] key) {
+		return this.shards[shardIndex(key)];
+	}
+	
+	private int shardIndex(byte[] key) {
+		if(this.shards.length == 1) {
+			return 0;
+		}
+		
+		return (Hashing.murmur3_32().hashBytes(key).asInt() & Integer.MAX_VALUE) % this.shards.length;
+	}
+	
+	private static void closeQuietly(DB db) {
+		if(db == null) {
+			return;
+		}
+		
 		try {
-			this.db.close();
+			db.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			// eat up
 		}
 	}
+	
+	/**
+	 * A snapshot together with the flakes changed after it was taken.
+	 * 
+	 * @author sangupta
+	 *
+	 */
+	private static class SnapshotView {
+		
+		final MetadataSnapshot snapshot;
+		
+		final Set<String> changes;
+		
+		SnapshotView(MetadataSnapshot snapshot, Set<String> changes) {
+			this.snapshot = snapshot;
+			this.changes = changes;
+		}
+		
+	}
 }
@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -34,9 +35,13 @@ import java.util.TreeMap;
 
 import org.apache.commons.io.FileUtils;
 
+import com.sangupta.snowpack.codec.FlakeCodecs;
 import com.sangupta.snowpack.domain.ChunkInfo;
 import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.SnowpackConfig;
 import com.sangupta.snowpack.domain.SnowpackMeta;
+import com.sangupta.snowpack.io.ChunkFooter;
+import com.sangupta.snowpack.io.ChunkIO;
 
 /**
  * A tool that can recover a crashed Snowpack directory
@@ -54,8 +59,8 @@ import com.sangupta.snowpack.domain.SnowpackMeta;
 public class SnowpackRecover {
 	
 	public static void main(String[] args) {
-		if(args.length != 1) {
-			System.out.println("Usage: java -classpath snowpack.jar com.sangupta.snowpack.SnowpackRecover <base-folder>");
+		if(args.length != 1 && args.length != 2) {
+			System.out.println("Usage: java -classpath snowpack.jar com.sangupta.snowpack.SnowpackRecover <base-folder> [metadata-shards]");
 			return;
 		}
 		
@@ -71,18 +76,35 @@ public class SnowpackRecover {
 		}
 		
 		long start = System.currentTimeMillis();
-		recover(base);
+		if(args.length == 2) {
+			recover(base, Integer.parseInt(args[1]));
+		} else {
+			recover(base);
+		}
 		long end = System.currentTimeMillis();
 		
 		System.out.println("Recovery process complete in " + (end - start) + "ms.");
 	}
 	
 	/**
-	 * Start the recovery process.
+	 * Start the recovery process. The metadata is rebuilt with the same engine,
+	 * and the same number of shards, as it was stored in.
 	 * 
 	 * @param baseDirectory
 	 */
 	public static void recover(final File baseDirectory) {
+		recover(baseDirectory, Math.max(1, SnowpackMetadataDB.getShardCount(baseDirectory)));
+	}
+	
+	/**
+	 * Start the recovery process, rebuilding LevelDB metadata split into the
+	 * given number of shards. This may be used to change the number of shards
+	 * of an existing snowpack.
+	 * 
+	 * @param baseDirectory
+	 * @param metadataShards
+	 */
+	public static void recover(final File baseDirectory, final int metadataShards) {
 		// basic checks
 		if(baseDirectory == null) {
 			throw new IllegalArgumentException("Base directory cannot be empty");
@@ -108,6 +130,13 @@ public class SnowpackRecover {
 			return;
 		}
 		
+		// rebuild the metadata with the engine it was stored in
+		final boolean useIndex = new File(baseDirectory, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY).isDirectory();
+		final long maxFlakes = Math.max(new SnowpackConfig().metadataIndexMaxFlakes, OffHeapMetadataIndex.getMaxFlakes(baseDirectory));
+		
+		// and the dedup index if the pack had one
+		final boolean useDedup = new File(baseDirectory, SnowpackConstants.SNOWPACK_DEDUP_DIRECTORY).isDirectory();
+		
 		// rename the current metadata directory if any
 		try {
 			renameOldMetadataDirectory(baseDirectory);
@@ -118,7 +147,20 @@ public class SnowpackRecover {
 		
 		// create a new metadata directory
 		System.out.println("Creating new METADATA database for recovery...");
-		final SnowpackMetadataDB metadataDB = new SnowpackMetadataDB(baseDirectory, false, 1000); // do not cache metadata 
+		final MetadataStore metadataDB;
+		if(useIndex) {
+			metadataDB = new OffHeapMetadataIndex(baseDirectory, 1024 * 1024, maxFlakes, false); // at least as large as before
+		} else {
+			metadataDB = new SnowpackMetadataDB(baseDirectory, false, 1000, metadataShards); // do not cache metadata 
+		}
+		
+		final DedupRebuild dedupRebuild;
+		if(useDedup) {
+			System.out.println("Creating new DEDUP index for recovery...");
+			dedupRebuild = new DedupRebuild(new SnowpackDedupIndex(baseDirectory), validChunks);
+		} else {
+			dedupRebuild = null;
+		}
 		
 		// iterate over all chunks
 		List<ChunkInfo> chunkInfos = new ArrayList<ChunkInfo>();
@@ -133,7 +175,7 @@ public class SnowpackRecover {
 			System.out.print("Recovering from chunk file: " + chunkFile.getAbsolutePath() + "...");
 			ChunkInfo chunkInfo = null;
 			try {
-				chunkInfo = recoverChunkInfo(chunkID, chunkFile, metadataDB);
+				chunkInfo = recoverChunkInfo(chunkID, chunkFile, metadataDB, dedupRebuild);
 			} catch (FileNotFoundException e) {
 				// this shall never happen as we just read the file
 				// eat up
@@ -160,6 +202,11 @@ public class SnowpackRecover {
 		System.out.println("Closing recovered METADATA database...");
 		metadataDB.close();
 		
+		if(dedupRebuild != null) {
+			System.out.println("Closing recovered DEDUP index...");
+			dedupRebuild.close();
+		}
+		
 		// now check if something was recovered
 		if(chunkInfos.isEmpty()) {
 			System.out.println("Unable to recover anything from the chunk files... Sorry!");
@@ -186,6 +233,28 @@ public class SnowpackRecover {
 		if(dir.exists() && dir.isDirectory()) {
 			FileUtils.moveDirectoryToDirectory(dir, preRecover, true);
 		}
+		
+		File snapshot = new File(baseDirectory, SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_DIRECTORY);
+		if(snapshot.exists() && snapshot.isDirectory()) {
+			FileUtils.moveDirectoryToDirectory(snapshot, preRecover, true);
+		}
+		
+		File index = new File(baseDirectory, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY);
+		if(index.exists() && index.isDirectory()) {
+			FileUtils.moveDirectoryToDirectory(index, preRecover, true);
+		}
+		
+		// the saved bloom filter belongs to the old metadata
+		File bloomFilter = new File(baseDirectory, SnowpackConstants.SNOWPACK_BLOOM_FILTER_FILENAME);
+		if(bloomFilter.exists()) {
+			FileUtils.moveFileToDirectory(bloomFilter, preRecover, true);
+		}
+		
+		// as does the dedup index - it is rebuilt from the recovered metadata
+		File dedup = new File(baseDirectory, SnowpackConstants.SNOWPACK_DEDUP_DIRECTORY);
+		if(dedup.exists() && dedup.isDirectory()) {
+			FileUtils.moveDirectoryToDirectory(dedup, preRecover, true);
+		}
 	}
 
 	/**
@@ -224,16 +293,71 @@ public class SnowpackRecover {
 	 * @param chunkID
 	 * @param chunkFile
 	 * @param metadataDB 
+	 * @param dedupRebuild
+	 *            the dedup index being rebuilt, or <code>null</code> if the pack
+	 *            does not deduplicate flakes
 	 * @return
 	 * @throws IOException 
 	 */
-	private static ChunkInfo recoverChunkInfo(final int chunkID, final File chunkFile, SnowpackMetadataDB metadataDB) throws IOException {
+	private static ChunkInfo recoverChunkInfo(final int chunkID, final File chunkFile, MetadataStore metadataDB, DedupRebuild dedupRebuild) throws IOException {
+		List<FlakeMetadata> metas = new ArrayList<FlakeMetadata>();
+		
+		// a sealed chunk carries an index of all its records
+		ChunkFooter footer = ChunkFooter.read(chunkFile);
+		if(footer != null) {
+			System.out.print(" using footer index...");
+			for(ChunkFooter.Entry entry : footer.entries) {
+				metas.add(entry.toFlakeMetadata(chunkID));
+			}
+		} else {
+			metas = scanChunk(chunkID, chunkFile);
+			if(metas == null) {
+				return null;
+			}
+		}
+		
+		int numFiles = metas.size();
+		
+		// all clear for recovery
+		
+		// save all metadata in new DB
+		for(FlakeMetadata meta : metas) {
+			FlakeMetadata previous = null;
+			if(dedupRebuild != null) {
+				previous = metadataDB.get(meta.flakeName);
+			}
+			
+			metadataDB.save(meta);
+			
+			if(dedupRebuild != null) {
+				dedupRebuild.replace(previous, meta);
+			}
+		}
+		
+		// return chunk info
+		ChunkInfo info = new ChunkInfo();
+		info.chunkID = chunkID;
+		info.numFiles = numFiles;
+		info.writePointer = -1;
+		
+		return info;
+	}
+
+	/**
+	 * Read the metadata of all records in a chunk by parsing each record header.
+	 * 
+	 * @param chunkID
+	 * @param chunkFile
+	 * @return the metadata, or <code>null</code> if the chunk is corrupt
+	 * @throws IOException
+	 */
+	private static List<FlakeMetadata> scanChunk(final int chunkID, final File chunkFile) throws IOException {
 		// open the file for reading
 		RandomAccessFile raf = new RandomAccessFile(chunkFile, "r");
 		
 		// read the length first
-		int nameLength, length, terminator, headerLength, numFiles = 0;
-		long offset;
+		int nameLength, length, terminator, headerLength;
+		long offset, created;
 		
 		List<FlakeMetadata> metas = new ArrayList<FlakeMetadata>();
 		
@@ -242,43 +366,130 @@ public class SnowpackRecover {
 				offset = raf.getFilePointer();
 				
 				nameLength = raf.readInt();
+				if(nameLength <= 0) {
+					// reached the pre-allocated space
+					break;
+				}
+				
 				byte[] name = new byte[nameLength];
 				raf.readFully(name);
 				
 				length = raf.readInt();
-				raf.readLong();
-				raf.skipBytes((int) length);
+				created = raf.readLong();
+				
+				// only the data of a reference record is needed
+				byte[] data = null;
+				if(length == ChunkIO.REFERENCE_LENGTH) {
+					data = new byte[length];
+					raf.readFully(data);
+				} else {
+					raf.skipBytes((int) length);
+				}
 		
 				terminator = raf.readByte();
-				if(terminator != 0) {
+				
+				// a streaming save that never completed
+				if(created == SnowpackConstants.INCOMPLETE_RECORD_MARKER) {
+					continue;
+				}
+				
+				// a deduplicated flake points to the record holding its data
+				if(terminator == SnowpackConstants.REFERENCE_RECORD_MARKER && data != null) {
+					metas.add(ChunkIO.decodeReference(new String(name), data));
+					continue;
+				}
+				
+				// the terminator holds the ID of the codec used
+				if(!FlakeCodecs.isKnown((byte) terminator)) {
 					System.out.print(" invalid descriptor found...");
 					return null;
 				}
 				
 				headerLength = 4 + name.length + 4 + 8;
 				
-				numFiles++;
-				
-				metas.add(new FlakeMetadata(new String(name), nameLength, chunkID, offset, headerLength));
+				metas.add(new FlakeMetadata(new String(name), length, chunkID, offset, headerLength));
 			}
 		} finally {
 			raf.close();
 		}
 		
-		// all clear for recovery
+		return metas;
+	}
+
+	/**
+	 * Rebuilds the dedup index as the metadata is recovered, counting the flakes
+	 * that refer to each record. Each record is hashed when the first flake
+	 * referring to it is recovered.
+	 * 
+	 */
+	private static class DedupRebuild {
 		
-		// save all metadata in new DB
-		for(FlakeMetadata meta : metas) {
-			metadataDB.save(meta);
+		private final SnowpackDedupIndex dedupIndex;
+		
+		private final Map<Integer, File> chunkFiles;
+		
+		private final Map<Integer, RandomAccessFile> openChunks = new HashMap<Integer, RandomAccessFile>();
+		
+		DedupRebuild(SnowpackDedupIndex dedupIndex, Map<Integer, File> chunkFiles) {
+			this.dedupIndex = dedupIndex;
+			this.chunkFiles = chunkFiles;
 		}
 		
-		// return chunk info
-		ChunkInfo info = new ChunkInfo();
-		info.chunkID = chunkID;
-		info.numFiles = numFiles;
-		info.writePointer = -1;
+		/**
+		 * Account for a recovered flake that replaces the given previous version.
+		 * 
+		 * @param previous
+		 * @param recovered
+		 */
+		void replace(FlakeMetadata previous, FlakeMetadata recovered) {
+			if(!this.dedupIndex.addReference(recovered)) {
+				try {
+					this.dedupIndex.addLocation(this.dedupIndex.hash(readData(recovered)), recovered);
+				} catch(IOException e) {
+					// the record cannot be read - it is not shared
+				}
+			}
+			
+			this.dedupIndex.release(previous);
+		}
+		
+		/**
+		 * Read and decode the data of the record at the given location.
+		 * 
+		 * @param flakeMetadata
+		 * @return
+		 * @throws IOException
+		 */
+		private byte[] readData(FlakeMetadata flakeMetadata) throws IOException {
+			RandomAccessFile raf = this.openChunks.get(flakeMetadata.chunk);
+			if(raf == null) {
+				File chunkFile = this.chunkFiles.get(flakeMetadata.chunk);
+				if(chunkFile == null) {
+					throw new IOException("No chunk file for chunk: " + flakeMetadata.chunk);
+				}
+				
+				raf = new RandomAccessFile(chunkFile, "r");
+				this.openChunks.put(flakeMetadata.chunk, raf);
+			}
+			
+			byte[] bytes = new byte[flakeMetadata.length];
+			raf.seek(flakeMetadata.offset + flakeMetadata.headerLength);
+			raf.readFully(bytes);
+			return FlakeCodecs.decode(raf.readByte(), bytes);
+		}
+		
+		void close() {
+			for(RandomAccessFile raf : this.openChunks.values()) {
+				try {
+					raf.close();
+				} catch(IOException e) {
+					// eat up
+				}
+			}
+			
+			this.dedupIndex.close();
+		}
 		
-		return info;
 	}
 
 	/**
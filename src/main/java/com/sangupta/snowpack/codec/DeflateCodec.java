@@ -0,0 +1,119 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link FlakeCodec} that uses the JDK {@link Deflater} and {@link Inflater}.
+ * 
+ * @author sangupta
+ *
+ */
+public class DeflateCodec implements FlakeCodec {
+	
+	/**
+	 * The ID of this codec
+	 */
+	public static final byte ID = 1;
+	
+	/**
+	 * The compression level to use
+	 */
+	private final int level;
+	
+	/**
+	 * Create a codec that uses the default compression level.
+	 * 
+	 */
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * Create a codec that uses the given compression level.
+	 * 
+	 * @param level
+	 */
+	public DeflateCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public byte getID() {
+		return ID;
+	}
+
+	@Override
+	public byte[] compress(byte[] bytes) {
+		Deflater deflater = new Deflater(this.level, true);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length / 2 + 64);
+			byte[] buffer = new byte[Math.min(bytes.length + 64, 64 * 1024)];
+			while(!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				stream.write(buffer, 0, length);
+			}
+			
+			return stream.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public void decompress(byte[] source, int offset, int length, byte[] target) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			// the nowrap mode needs an extra dummy byte at the end of the input
+			byte[] input = new byte[length + 1];
+			System.arraycopy(source, offset, input, 0, length);
+			inflater.setInput(input);
+			
+			int inflated = 0;
+			while(inflated < target.length) {
+				int count = inflater.inflate(target, inflated, target.length - inflated);
+				if(count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				
+				inflated += count;
+			}
+			
+			if(inflated != target.length) {
+				throw new IOException("Compressed flake data is corrupt");
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Compressed flake data is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+	
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.codec;
+
+import java.io.IOException;
+
+/**
+ * A compression codec for the data of a flake. The ID of the codec is stored
+ * with each record in the chunk, so that the record can be decompressed
+ * by the same codec later. Codecs must be registered with {@link FlakeCodecs}
+ * before chunks written with them can be read.
+ * 
+ * @author sangupta
+ *
+ */
+public interface FlakeCodec {
+	
+	/**
+	 * Return the unique ID of this codec - between 1 and 127. Zero is used
+	 * for flakes that are stored uncompressed.
+	 * 
+	 * @return
+	 */
+	public byte getID();
+	
+	/**
+	 * Compress the given bytes.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public byte[] compress(byte[] bytes);
+	
+	/**
+	 * Decompress the given range of bytes into the target array, which is of
+	 * the exact size of the original data.
+	 * 
+	 * @param source
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 *             if the data is corrupt
+	 */
+	public void decompress(byte[] source, int offset, int length, byte[] target) throws IOException;
+	
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of all known {@link FlakeCodec}s, and helpers to encode and decode
+ * the data of a flake. Compressed data is stored as the length of the original
+ * data followed by the compressed bytes. The {@link DeflateCodec} is always
+ * registered, and the codec configured for a snowpack is registered when the
+ * snowpack is opened.
+ * 
+ * @author sangupta
+ *
+ */
+public final class FlakeCodecs {
+	
+	/**
+	 * The ID stored for flakes that are not compressed
+	 */
+	public static final byte NONE = 0;
+	
+	/**
+	 * All registered codecs by their ID
+	 */
+	private static final AtomicReferenceArray<FlakeCodec> CODECS = new AtomicReferenceArray<FlakeCodec>(128);
+	
+	static {
+		register(new DeflateCodec());
+	}
+	
+	private FlakeCodecs() {
+		// cannot be instantiated
+	}
+	
+	/**
+	 * Register a codec so that flakes written with it can be read back.
+	 * 
+	 * @param codec
+	 */
+	public static void register(FlakeCodec codec) {
+		if(codec == null) {
+			throw new IllegalArgumentException("Codec cannot be null");
+		}
+		
+		byte id = codec.getID();
+		if(id <= NONE) {
+			throw new IllegalArgumentException("Codec ID must be between 1 and 127");
+		}
+		
+		FlakeCodec existing = CODECS.get(id);
+		if(existing != null && existing.getClass() != codec.getClass()) {
+			throw new IllegalArgumentException("Another codec is already registered with ID: " + id);
+		}
+		
+		CODECS.set(id, codec);
+	}
+	
+	/**
+	 * Check if there is a codec registered with the given ID, or if the ID
+	 * stands for uncompressed data.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public static boolean isKnown(byte id) {
+		return id == NONE || (id > NONE && CODECS.get(id) != null);
+	}
+	
+	/**
+	 * Compress the data with the given codec. Returns <code>null</code> if the
+	 * compressed form is not smaller than <code>maxRatio</code> times the size
+	 * of the data - in which case the data should be stored as is.
+	 * 
+	 * @param codec
+	 * @param bytes
+	 * @param maxRatio
+	 * @return
+	 */
+	public static byte[] encode(FlakeCodec codec, byte[] bytes, double maxRatio) {
+		byte[] compressed = codec.compress(bytes);
+		if(4 + compressed.length > bytes.length * maxRatio) {
+			return null;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(4 + compressed.length);
+		buffer.putInt(bytes.length);
+		buffer.put(compressed);
+		return buffer.array();
+	}
+	
+	/**
+	 * Decompress data that was written by {@link #encode(FlakeCodec, byte[], double)}
+	 * with the codec of the given ID.
+	 * 
+	 * @param id
+	 * @param stored
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] decode(byte id, byte[] stored) throws IOException {
+		if(id == NONE) {
+			return stored;
+		}
+		
+		FlakeCodec codec = id > NONE ? CODECS.get(id) : null;
+		if(codec == null) {
+			throw new IOException("No codec registered with ID: " + id);
+		}
+		
+		if(stored.length < 4) {
+			throw new IOException("Compressed flake data is corrupt");
+		}
+		
+		int length = ByteBuffer.wrap(stored).getInt();
+		if(length < 0) {
+			throw new IOException("Compressed flake data is corrupt");
+		}
+		
+		byte[] bytes = new byte[length];
+		codec.decompress(stored, 4, stored.length - 4, bytes);
+		return bytes;
+	}
+	
+}
@@ -0,0 +1,56 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.domain;
+
+/**
+ * Defines when the data written to a snowpack is forced to the disk. Modes
+ * towards the end of the list are more durable, but slower.
+ * 
+ * @author sangupta
+ *
+ */
+public enum DurabilityMode {
+	
+	/**
+	 * Never force data to disk - leave it to the operating system
+	 */
+	NONE,
+	
+	/**
+	 * Force the active chunk to disk from a background thread every
+	 * {@link SnowpackConfig#fsyncIntervalMillis} milliseconds
+	 */
+	PERIODIC,
+	
+	/**
+	 * Force data and metadata to disk once for every batch written - a
+	 * group-commit batch, a bulk save batch, or a single flake otherwise
+	 */
+	BATCH,
+	
+	/**
+	 * Force data and metadata to disk for every single flake. Group commit
+	 * is bypassed in this mode.
+	 */
+	FLAKE;
+
+}
@@ -21,6 +21,8 @@
 
 package com.sangupta.snowpack.domain;
 
+import java.nio.ByteBuffer;
+
 /**
  * Holds information about one flake in the snowpack chunks. A flake
  * is one file that is stored inside the snowpack.
@@ -46,10 +48,18 @@ public class Flake {
 	public long created;
 	
 	/**
-	 * Bytes for this flake/file
+	 * Bytes for this flake/file - <code>null</code> for a flake served from a
+	 * memory-mapped chunk, use {@link #getBytes()} to get a copy
 	 */
 	public byte[] bytes;
 	
+	/**
+	 * Read-only view over the bytes for this flake/file when it is served
+	 * from a memory-mapped chunk - can be used instead of <code>bytes</code>
+	 * to avoid a copy
+	 */
+	public ByteBuffer buffer;
+	
 	/**
 	 * Default constructor
 	 */
@@ -68,4 +78,57 @@ public class Flake {
 		this.created = created;
 		this.bytes = bytes;
 	}
+	
+	/**
+	 * Convenience constructor for flakes served from a memory-mapped chunk.
+	 * 
+	 * @param buffer
+	 */
+	public Flake(String name, int length, long created, ByteBuffer buffer) {
+		this.flakeName = name;
+		this.length = length;
+		this.created = created;
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * Return the bytes for this flake. If the flake is only backed by a buffer,
+	 * the bytes are copied out of the buffer on every call - the copy is not
+	 * kept, as the flake may be shared through the cache.
+	 * 
+	 * @return
+	 */
+	public byte[] getBytes() {
+		if(this.bytes != null) {
+			return this.bytes;
+		}
+		
+		if(this.buffer == null) {
+			return null;
+		}
+		
+		ByteBuffer view = this.buffer.duplicate();
+		byte[] copy = new byte[view.remaining()];
+		view.get(copy);
+		
+		return copy;
+	}
+	
+	/**
+	 * Return a read-only view over the data of this flake, without copying
+	 * it.
+	 * 
+	 * @return
+	 */
+	public ByteBuffer asBuffer() {
+		if(this.buffer != null) {
+			return this.buffer.duplicate();
+		}
+		
+		if(this.bytes == null) {
+			return null;
+		}
+		
+		return ByteBuffer.wrap(this.bytes).asReadOnlyBuffer();
+	}
 }
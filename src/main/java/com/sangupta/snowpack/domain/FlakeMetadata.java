@@ -22,6 +22,7 @@
 package com.sangupta.snowpack.domain;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Holds metadata information about one flake.
@@ -30,6 +31,21 @@ import java.nio.ByteBuffer;
  *
  */
 public class FlakeMetadata {
+	
+	/**
+	 * Marker byte of the variable-length format
+	 */
+	private static final byte FORMAT_VARINT = (byte) 0x81;
+	
+	/**
+	 * Set in the marker byte when the header length is written as well
+	 */
+	private static final byte FLAG_HEADER_LENGTH = 0x02;
+	
+	/**
+	 * Longest encoding - the marker, three ints and a long
+	 */
+	private static final int MAX_ENCODED_LENGTH = 1 + 5 + 5 + 10 + 5;
 
 	/**
 	 * The unique flake name or identifier in the system
@@ -100,32 +116,96 @@ public class FlakeMetadata {
 	}
 
 	/**
-	 * Return the flake metadata as bytes.
+	 * Return the flake metadata as bytes. The length, chunk and offset are
+	 * written as variable-length integers after a format byte. The header
+	 * length is only written if it differs from the one implied by the flake
+	 * name, as happens for flakes that share the record of another flake.
 	 * 
 	 * @return
 	 */
 	public byte[] asBytes() {
-		ByteBuffer buffer = ByteBuffer.allocate(20); // 2 ints and 2 longs - 2 * 32 + 2 * 64 = 192 bits = 24 bytes
-		buffer.putInt(this.length);
-		buffer.putInt(this.chunk);
-		buffer.putLong(this.offset);
-		buffer.putInt(this.headerLength);
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_ENCODED_LENGTH);
+		
+		boolean derived = this.headerLength == defaultHeaderLength(this.flakeName);
+		buffer.put(derived ? FORMAT_VARINT : (byte) (FORMAT_VARINT | FLAG_HEADER_LENGTH));
+		
+		putVarLong(buffer, this.length);
+		putVarLong(buffer, this.chunk);
+		putVarLong(buffer, this.offset);
+		if(!derived) {
+			putVarLong(buffer, this.headerLength);
+		}
 		
-		return buffer.array();
+		return Arrays.copyOf(buffer.array(), buffer.position());
 	}
 
 	/**
-	 * Initialize this object using the given bytes.
+	 * Initialize this object using the given bytes. Both the variable-length
+	 * format and the older fixed 20-byte format are read - the first byte of
+	 * the older format is the high byte of a non-negative length, and thus
+	 * never has its top bit set.
 	 * 
 	 * @param flakeName
 	 * @param bytes
 	 */
 	private void fromBytes(byte[] bytes) {
 		ByteBuffer buffer = ByteBuffer.wrap(bytes);
-		this.length = buffer.getInt();
-		this.chunk = buffer.getInt();
-		this.offset = buffer.getLong();
-		this.headerLength = buffer.getInt();
+		
+		byte format = bytes[0];
+		if((format & 0x80) == 0) {
+			this.length = buffer.getInt();
+			this.chunk = buffer.getInt();
+			this.offset = buffer.getLong();
+			this.headerLength = buffer.getInt();
+			return;
+		}
+		
+		if((format & ~FLAG_HEADER_LENGTH) != FORMAT_VARINT) {
+			throw new IllegalArgumentException("Unknown flake metadata format: " + format);
+		}
+		
+		buffer.get();
+		this.length = (int) getVarLong(buffer);
+		this.chunk = (int) getVarLong(buffer);
+		this.offset = getVarLong(buffer);
+		if((format & FLAG_HEADER_LENGTH) != 0) {
+			this.headerLength = (int) getVarLong(buffer);
+		} else {
+			this.headerLength = defaultHeaderLength(this.flakeName);
+		}
+	}
+	
+	/**
+	 * The header length of a record written for the flake with the given name -
+	 * the name length, the name, the data length and the creation time.
+	 * 
+	 * @param flakeName
+	 * @return
+	 */
+	private static int defaultHeaderLength(String flakeName) {
+		return 4 + flakeName.getBytes().length + 4 + 8;
+	}
+	
+	private static void putVarLong(ByteBuffer buffer, long value) {
+		while((value & ~0x7fl) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		
+		buffer.put((byte) value);
+	}
+	
+	private static long getVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IllegalArgumentException("Malformed variable-length integer in flake metadata");
 	}
 
 }
@@ -0,0 +1,46 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.domain;
+
+/**
+ * Defines the engine used to store the metadata of all flakes.
+ * 
+ * @author sangupta
+ *
+ */
+public enum MetadataEngine {
+	
+	/**
+	 * Store the metadata in LevelDB, with a cache of recently used entries on
+	 * the heap
+	 */
+	LEVELDB,
+	
+	/**
+	 * Store the metadata in an open-addressing hash table held in
+	 * memory-mapped files. Nothing is kept on the heap per flake, but flakes
+	 * cannot be listed - flake listing must be disabled in the configuration
+	 * to use this engine.
+	 */
+	OFF_HEAP_INDEX;
+
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.domain;
+
+/**
+ * A point-in-time snapshot of the counters of the global flake cache.
+ * 
+ * @author sangupta
+ *
+ */
+public class SnowpackCacheStats {
+
+	/**
+	 * Number of lookups that were served from the cache
+	 */
+	public long hitCount;
+	
+	/**
+	 * Number of lookups that were not found in the cache
+	 */
+	public long missCount;
+	
+	/**
+	 * Number of flakes evicted from the cache to make space
+	 */
+	public long evictionCount;
+	
+	/**
+	 * Number of flakes that were not admitted in the cache as they
+	 * were not accessed frequently enough
+	 */
+	public long rejectedCount;
+	
+	/**
+	 * Total number of flake bytes currently held in the cache
+	 */
+	public long weightedSize;
+	
+	/**
+	 * Number of lookups that were served from the off-heap tier
+	 */
+	public long offHeapHitCount;
+	
+	/**
+	 * Total number of flake bytes currently held in the off-heap tier
+	 */
+	public long offHeapWeightedSize;
+	
+	/**
+	 * Generate string representation of object
+	 */
+	@Override
+	public String toString() {
+		return "[Cache hits:" + this.hitCount + ", misses:" + this.missCount + ", evictions:" + this.evictionCount + ", rejected:" + this.rejectedCount + ", bytes:" + this.weightedSize + ", off-heap hits:" + this.offHeapHitCount + ", off-heap bytes:" + this.offHeapWeightedSize + "]";
+	}
+	
+}
@@ -22,6 +22,7 @@
 package com.sangupta.snowpack.domain;
 
 import com.sangupta.snowpack.Snowpack;
+import com.sangupta.snowpack.codec.FlakeCodec;
 
 /**
  * The configuration object when creating a {@link Snowpack} instance. Defines
@@ -42,10 +43,84 @@ public class SnowpackConfig {
 	
 	public boolean writeCachingEnabled = true;
 	
+	public int activeWriters = 1; // number of chunks written to at the same time - each rolls over on its own
+	
+	public boolean writerThreadAffinity = false; // flakes are assigned to active writers round-robin, or by the saving thread if set
+	
+	public long maxBytesInWriteCache = 16 * 1024l * 1024l; // recently written flakes each active writer keeps in memory - older ones are read from disk
+	
+	public boolean preCreateChunks = true; // create and allocate the next chunks in the background, and seal full chunks there as well
+	
+	public boolean groupCommitEnabled = false; // concurrent saves are queued and written together in one batch
+	
+	public int groupCommitMaxBatchSize = 1024 * 1024; // a group-commit batch is closed once it reaches 1 MB
+	
+	public DurabilityMode durabilityMode = DurabilityMode.NONE; // when written data is forced to disk - see DurabilityMode
+	
+	public long fsyncIntervalMillis = 1000l; // the active chunk is forced to disk every second in periodic durability mode
+	
+	public long maxBytesInSaveBatch = 4 * 1024l * 1024l; // bulk saves are written in batches of up to 4 MB
+	
+	public FlakeCodec compressionCodec = null; // codec used to compress flake data on disk - null to store flakes uncompressed
+	
+	public int compressionThreshold = 512; // flakes smaller than 512 bytes are never compressed
+	
+	public double compressionMaxRatio = 0.9d; // flakes that do not compress to 90% of their size or less are stored uncompressed
+	
+	public MetadataEngine metadataEngine = MetadataEngine.LEVELDB; // where the metadata of all flakes is stored - see MetadataEngine
+	
+	public int metadataIndexInitialCapacity = 1024 * 1024; // the off-heap metadata index is first sized for a million flakes, and grows as needed
+	
+	public long metadataIndexMaxFlakes = 1l << 30; // the off-heap metadata index is created to hold up to about a billion flakes - fixed once created, an existing index that holds fewer fails to open, and saves fail once it is full
+	
+	public boolean flakeListingEnabled = true; // flakes can be listed by prefix - must be disabled to use the off-heap metadata index, which cannot list them
+	
+	public int metadataShards = 1; // the LevelDB metadata is split across this many databases by the hash of the flake name
+	
+	public boolean metadataSnapshotEnabled = false; // a snapshot of the LevelDB metadata is mapped on open, to serve lookups while the caches are cold
+	
+	public long metadataSnapshotIntervalMillis = 5 * 60 * 1000l; // a new metadata snapshot is taken every 5 minutes
+	
+	public boolean dedupEnabled = false; // identical flakes are stored once and shared, with a content-addressed index
+	
+	public int dedupMinSize = 64; // flakes smaller than 64 bytes are never deduplicated
+	
 	public int maxFlakesInChunk = 0; // set this value to zero - to store according to the size of the chunk
 	
-	public int maxEntriesInReadCache = 1000; // the more number of items you cache - the more memory you will need
+	public long maxBytesInReadCache = 64 * 1024l * 1024l; // total flake bytes held in the read cache - the more you cache, the more memory you will need
+	
+	public int maxEntriesInReadCache = 1000; // expected number of flakes in the read cache - sizes the admission frequency sketch
+	
+	public int readCacheAdmissionFrequency = 2; // minimum recent reads of a flake before it may displace others in a full read cache
+	
+	public boolean offHeapCachingEnabled = false; // flakes evicted from the read cache drop into an off-heap cache tier
+	
+	public long maxBytesInOffHeapCache = 1024l * 1024l * 1024l; // 1 GB of direct memory - raise -XX:MaxDirectMemorySize accordingly
+	
+	public int offHeapSlabSize = 4 * 1024 * 1024; // off-heap memory is allocated in slabs of 4 MB - flakes larger than this are not cached off-heap
 	
 	public int maxEntriesInMetadataCache = 1000; // maximum number of flake metadata entries to cache
 	
+	public boolean bloomFilterEnabled = true; // answer lookups of missing flakes from a Bloom filter instead of the metadata DB
+	
+	public long bloomFilterExpectedFlakes = 1000l * 1000l; // size the Bloom filter for these many flakes - beyond this the false positive rate rises
+	
+	public double bloomFilterFalsePositiveRate = 0.01d; // 1% of lookups for missing flakes still go to the metadata DB
+	
+	public int ioThreads = 4; // threads that serve the asynchronous read/write API of the snowpack
+	
+	public int ioQueueSize = 1024; // pending asynchronous operations beyond this fail fast instead of blocking the caller
+	
+	public boolean memoryMapSealedChunks = false; // serve flakes from sealed chunks as slices of a memory-mapped file
+	
+	public long mappedWindowSize = 1024l * 1024l * 1024l; // map sealed chunks in windows of 1 GB
+	
+	public int readAheadSize = 0; // bytes to read ahead once a thread reads flakes of a sealed chunk in sequence, e.g. 1 MB - zero disables read-ahead
+	
+	public int readAheadTriggerGap = 64 * 1024; // reads less than 64 KB apart in a chunk count as sequential for read-ahead
+	
+	public int multiGetCoalesceGap = 64 * 1024; // flakes of a multi-get less than 64 KB apart in a chunk are fetched in one read
+	
+	public int multiGetMaxReadSize = 4 * 1024 * 1024; // but a single coalesced read never exceeds 4 MB
+	
 }
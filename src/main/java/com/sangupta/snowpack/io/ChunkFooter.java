@@ -0,0 +1,416 @@
+/**
+ *
+ * snowpack - Pack flakes in chunks
+ * Copyright (c) 2013, Sandeep Gupta
+ * 
+ * http://www.sangupta/projects/snowpack
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * 		http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.sangupta.snowpack.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.sangupta.snowpack.SnowpackConstants;
+import com.sangupta.snowpack.domain.FlakeMetadata;
+
+/**
+ * The index block written at the end of a chunk when it is sealed. The
+ * block lists the name hash and name of every record in the chunk, along
+ * with the chunk, offset, length and header length of the record holding the
+ * flake data - which is the record itself, unless it is a reference record
+ * written for a deduplicated flake. The block is followed by a fixed-size
+ * trailer:
+ * 
+ * <pre>
+ * [long index offset][int number of entries][long CRC32 of index block][int magic]
+ * </pre>
+ * 
+ * This allows rebuilding the metadata of a chunk with one sequential read of
+ * the footer instead of parsing every record header.
+ * 
+ * @author sangupta
+ *
+ */
+public class ChunkFooter {
+	
+	/**
+	 * Size of the trailer in bytes
+	 */
+	public static final int TRAILER_LENGTH = 8 + 4 + 8 + 4;
+	
+	/**
+	 * The entries in this footer
+	 */
+	public final List<Entry> entries;
+	
+	/**
+	 * The position in the chunk where the flake data ends and the index starts
+	 */
+	public final long dataEnd;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param entries
+	 * @param dataEnd
+	 */
+	private ChunkFooter(List<Entry> entries, long dataEnd) {
+		this.entries = entries;
+		this.dataEnd = dataEnd;
+	}
+	
+	/**
+	 * Read the footer of the given chunk.
+	 * 
+	 * @param chunkFile
+	 * @return the footer, or <code>null</code> if the chunk has no valid footer
+	 * @throws IOException
+	 */
+	public static ChunkFooter read(File chunkFile) throws IOException {
+		RandomAccessFile handler = new RandomAccessFile(chunkFile, "r");
+		try {
+			final long length = handler.length();
+			if(length < TRAILER_LENGTH) {
+				return null;
+			}
+			
+			handler.seek(length - TRAILER_LENGTH);
+			long dataEnd = handler.readLong();
+			int numEntries = handler.readInt();
+			long checksum = handler.readLong();
+			int magic = handler.readInt();
+			
+			// footers without locations were written before reference records
+			final boolean locations = magic == SnowpackConstants.CHUNK_FOOTER_LOCATION_MAGIC;
+			if((!locations && magic != SnowpackConstants.CHUNK_FOOTER_MAGIC) || dataEnd < 0 || dataEnd > length - TRAILER_LENGTH) {
+				return null;
+			}
+			
+			byte[] bytes = new byte[(int) (length - TRAILER_LENGTH - dataEnd)];
+			handler.seek(dataEnd);
+			handler.readFully(bytes);
+			
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if(crc.getValue() != checksum) {
+				return null;
+			}
+			
+			ByteBuffer index = ByteBuffer.wrap(bytes);
+			List<Entry> entries = new ArrayList<Entry>(numEntries);
+			for(int count = 0; count < numEntries; count++) {
+				int nameHash = index.getInt();
+				byte[] name = new byte[index.getInt()];
+				index.get(name);
+				
+				int chunk = locations ? index.getInt() : Entry.THIS_CHUNK;
+				long offset = index.getLong();
+				int flakeLength = index.getInt();
+				int headerLength = locations ? index.getInt() : 4 + name.length + 4 + 8;
+				
+				entries.add(new Entry(nameHash, new String(name), chunk, offset, flakeLength, headerLength));
+			}
+			
+			return new ChunkFooter(entries, dataEnd);
+		} finally {
+			handler.close();
+		}
+	}
+	
+	/**
+	 * Collects the entries of the footer index while records are being written
+	 * to a chunk, so that sealing the chunk does not need to read it back.
+	 * 
+	 */
+	public static class Builder {
+		
+		/**
+		 * The index block being built
+		 */
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		
+		/**
+		 * Stream over the block
+		 */
+		private final DataOutputStream index = new DataOutputStream(this.block);
+		
+		/**
+		 * Number of entries added till now
+		 */
+		private int numEntries = 0;
+		
+		/**
+		 * The index of the chunk being indexed
+		 */
+		private final int chunk;
+		
+		/**
+		 * Create a builder for the footer of the given chunk.
+		 * 
+		 * @param chunk
+		 */
+		public Builder(int chunk) {
+			this.chunk = chunk;
+		}
+		
+		/**
+		 * Add the record written at the given offset.
+		 * 
+		 * @param name
+		 *            the flake name as stored in the record
+		 * @param offset
+		 * @param length
+		 *            the length of the stored flake data
+		 */
+		public void add(byte[] name, long offset, int length) {
+			add(name, this.chunk, offset, length, 4 + name.length + 4 + 8);
+		}
+		
+		/**
+		 * Add a reference record, written for a flake whose data is held by the
+		 * given record.
+		 * 
+		 * @param name
+		 *            the flake name as stored in the reference record
+		 * @param target
+		 */
+		public void addReference(byte[] name, FlakeMetadata target) {
+			add(name, target.chunk, target.offset, target.length, target.headerLength);
+		}
+		
+		private void add(byte[] name, int chunk, long offset, int length, int headerLength) {
+			try {
+				this.index.writeInt(new String(name).hashCode());
+				this.index.writeInt(name.length);
+				this.index.write(name);
+				this.index.writeInt(chunk);
+				this.index.writeLong(offset);
+				this.index.writeInt(length);
+				this.index.writeInt(headerLength);
+			} catch(IOException e) {
+				// cannot happen when writing to memory
+				throw new IllegalStateException(e);
+			}
+			
+			this.numEntries++;
+		}
+		
+		/**
+		 * Add all entries of the given builder after the ones in this builder.
+		 * 
+		 * @param other
+		 */
+		public void addAll(Builder other) {
+			try {
+				other.block.writeTo(this.index);
+			} catch(IOException e) {
+				// cannot happen when writing to memory
+				throw new IllegalStateException(e);
+			}
+			
+			this.numEntries += other.numEntries;
+		}
+		
+		/**
+		 * Add the entries of all records in the chunk till the given position by
+		 * parsing every record header. Used for chunks, or parts of them, that
+		 * were not written by a writer of this run. The scan stops early at the
+		 * pre-allocated space, or at a record cut short by a crash.
+		 * 
+		 * @param chunkFile
+		 * @param dataEnd
+		 * @return the position where the last complete record ends
+		 * @throws IOException
+		 */
+		public long scan(File chunkFile, long dataEnd) throws IOException {
+			DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(chunkFile), 64 * 1024));
+			long offset = 0;
+			try {
+				while(offset + 4 + 4 + 8 + 1 <= dataEnd) {
+					final long recordOffset = offset;
+					
+					int nameLength = stream.readInt();
+					if(nameLength <= 0 || recordOffset + 4 + nameLength + 4 + 8 + 1 > dataEnd) {
+						// reached the pre-allocated space
+						break;
+					}
+					
+					byte[] name = new byte[nameLength];
+					stream.readFully(name);
+					
+					int length = stream.readInt();
+					long created = stream.readLong();
+					
+					long recordEnd = recordOffset + 4 + nameLength + 4 + 8 + length + 1;
+					if(length < 0 || recordEnd > dataEnd) {
+						break;
+					}
+					
+					// only the data of a reference record is needed
+					byte[] data = null;
+					if(length == ChunkIO.REFERENCE_LENGTH) {
+						data = new byte[length];
+						stream.readFully(data);
+					} else {
+						skipFully(stream, length);
+					}
+					
+					byte codec = stream.readByte();
+					offset = recordEnd;
+					
+					// a streaming save that never completed
+					if(created == SnowpackConstants.INCOMPLETE_RECORD_MARKER) {
+						continue;
+					}
+					
+					if(codec == SnowpackConstants.REFERENCE_RECORD_MARKER && data != null) {
+						addReference(name, ChunkIO.decodeReference(new String(name), data));
+						continue;
+					}
+					
+					add(name, recordOffset, length);
+				}
+			} finally {
+				stream.close();
+			}
+			
+			return offset;
+		}
+		
+		/**
+		 * Seal the chunk by writing the index block and the trailer right after
+		 * the given data end. The chunk file is then truncated to remove any
+		 * pre-allocated space after the trailer.
+		 * 
+		 * @param handler
+		 *            a handler opened in read-write mode over the chunk file
+		 * @param dataEnd
+		 * @throws IOException
+		 */
+		public void write(RandomAccessFile handler, long dataEnd) throws IOException {
+			byte[] bytes = this.block.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+			trailer.putLong(dataEnd);
+			trailer.putInt(this.numEntries);
+			trailer.putLong(crc.getValue());
+			trailer.putInt(SnowpackConstants.CHUNK_FOOTER_LOCATION_MAGIC);
+			
+			handler.seek(dataEnd);
+			handler.write(bytes);
+			handler.write(trailer.array());
+			handler.setLength(dataEnd + bytes.length + TRAILER_LENGTH);
+		}
+		
+		/**
+		 * Skip the given number of bytes in the stream.
+		 * 
+		 * @param stream
+		 * @param bytes
+		 * @throws IOException
+		 */
+		private static void skipFully(DataInputStream stream, long bytes) throws IOException {
+			while(bytes > 0) {
+				long skipped = stream.skip(bytes);
+				if(skipped <= 0) {
+					throw new EOFException("Unexpected end of chunk reached while sealing");
+				}
+				
+				bytes -= skipped;
+			}
+		}
+		
+	}
+	
+	/**
+	 * One record in the footer index.
+	 * 
+	 */
+	public static class Entry {
+		
+		/**
+		 * The hash code of the flake name
+		 */
+		public final int nameHash;
+		
+		/**
+		 * The flake name
+		 */
+		public final String flakeName;
+		
+		/**
+		 * The chunk holding the flake data, or {@link #THIS_CHUNK}
+		 */
+		public final int chunk;
+		
+		/**
+		 * The offset of the record holding the flake data
+		 */
+		public final long offset;
+		
+		/**
+		 * The length of the flake data
+		 */
+		public final int length;
+		
+		/**
+		 * The length of the header of the record holding the flake data
+		 */
+		public final int headerLength;
+		
+		/**
+		 * Chunk of entries read from footers that do not store it - their data
+		 * is always in the chunk of the footer
+		 */
+		static final int THIS_CHUNK = -1;
+		
+		Entry(int nameHash, String flakeName, int chunk, long offset, int length, int headerLength) {
+			this.nameHash = nameHash;
+			this.flakeName = flakeName;
+			this.chunk = chunk;
+			this.offset = offset;
+			this.length = length;
+			this.headerLength = headerLength;
+		}
+		
+		/**
+		 * Convert this entry, read from the footer of the given chunk, to flake
+		 * metadata.
+		 * 
+		 * @param chunk
+		 * @return
+		 */
+		public FlakeMetadata toFlakeMetadata(int chunk) {
+			return new FlakeMetadata(this.flakeName, this.length, this.chunk == THIS_CHUNK ? chunk : this.chunk, this.offset, this.headerLength);
+		}
+		
+	}
+	
+}
@@ -22,13 +22,21 @@
 package com.sangupta.snowpack.io;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.sangupta.snowpack.Snowpack;
+import com.sangupta.snowpack.codec.FlakeCodecs;
 import com.sangupta.snowpack.domain.ChunkInfo;
 import com.sangupta.snowpack.domain.Flake;
 import com.sangupta.snowpack.domain.FlakeMetadata;
@@ -53,9 +61,29 @@ public abstract class ChunkIO implements Closeable {
 	protected final int chunkIndex;
 	
 	/**
-	 * The actual {@link RandomAccessFile} handler that handles this file
+	 * The mode in which the chunk file is opened
 	 */
-	protected final RandomAccessFile handler;
+	private final String mode;
+	
+	/**
+	 * The actual {@link RandomAccessFile} handler that handles this file -
+	 * replaced if the chunk file is reopened
+	 */
+	protected volatile RandomAccessFile handler;
+	
+	/**
+	 * The {@link FileChannel} over the handler - used for positional reads
+	 * that neither move the shared file pointer nor need a lock. A thread that
+	 * is interrupted during an operation on the channel closes it for every
+	 * thread, after which the chunk file is reopened.
+	 */
+	protected volatile FileChannel channel;
+	
+	/**
+	 * Signifies that the chunk file has been closed for good, and must not be
+	 * reopened
+	 */
+	private boolean released;
 	
 	/**
 	 * Keeps track of number of files in this chunk
@@ -66,6 +94,12 @@ public abstract class ChunkIO implements Closeable {
 	 * The lock to syncrhonize multiple threads writing the same file
 	 */
 	protected final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Length of the data of a reference record - the chunk, offset, data length
+	 * and header length of the record it points to
+	 */
+	public static final int REFERENCE_LENGTH = 4 + 8 + 4 + 4;
 
 	/**
 	 * 
@@ -78,8 +112,52 @@ public abstract class ChunkIO implements Closeable {
 	protected ChunkIO(File chunkFile, int chunkIndex, String mode) throws FileNotFoundException {
 		this.chunkFile = chunkFile;
 		this.chunkIndex = chunkIndex;
+		this.mode = mode;
 		
 		this.handler = new RandomAccessFile(this.chunkFile, mode);
+		this.channel = this.handler.getChannel();
+	}
+	
+	/**
+	 * Handle the channel having been found closed during an operation. If the
+	 * channel was closed because a thread was interrupted, rather than by
+	 * {@link #closeHandler()}, the chunk file is reopened. The interrupted
+	 * thread gets the exception back, while other threads whose operation was
+	 * cut short may retry it on the new channel.
+	 * 
+	 * @param closed
+	 *            the channel on which the operation failed
+	 * @param e
+	 *            the exception thrown by the operation
+	 * @throws IOException
+	 *             if the operation must not be retried
+	 */
+	protected final void recoverChannel(FileChannel closed, ClosedChannelException e) throws IOException {
+		synchronized(this) {
+			if(this.released) {
+				throw e;
+			}
+			
+			// another thread may have reopened it already
+			if(this.channel == closed) {
+				this.handler = new RandomAccessFile(this.chunkFile, this.mode);
+				this.channel = this.handler.getChannel();
+			}
+		}
+		
+		if(e instanceof ClosedByInterruptException) {
+			throw e;
+		}
+	}
+	
+	/**
+	 * Close the chunk file for good.
+	 * 
+	 * @throws IOException
+	 */
+	protected final synchronized void closeHandler() throws IOException {
+		this.released = true;
+		this.handler.close();
 	}
 	
 	/**
@@ -117,4 +195,206 @@ public abstract class ChunkIO implements Closeable {
 	 */
 	public abstract Flake readFlake(FlakeMetadata flakeMetadata) throws IOException;
 	
+	/**
+	 * Transfer the data of the given flake directly from the chunk file to the
+	 * given channel. This uses {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+	 * and thus the bytes never enter the Java heap where the OS supports it.
+	 * Compressed flakes are decompressed on the heap and written out.
+	 * 
+	 * The target must be in blocking mode. Should the transfer stop making
+	 * progress before the end of the flake, the rest of it is copied through
+	 * the heap instead.
+	 * 
+	 * @param flakeMetadata
+	 * @param target
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferFlake(FlakeMetadata flakeMetadata, WritableByteChannel target) throws IOException {
+		checkBlocking(target);
+		
+		ByteBuffer codec = ByteBuffer.allocate(1);
+		readFully(codec, recordEnd(flakeMetadata) - 1);
+		if(codec.get(0) != FlakeCodecs.NONE) {
+			return writeFlake(readRecord(flakeMetadata), target);
+		}
+		
+		long position = flakeMetadata.offset + flakeMetadata.headerLength;
+		final long end = position + flakeMetadata.length;
+		
+		while(position < end) {
+			long transferred;
+			FileChannel channel = this.channel;
+			try {
+				transferred = channel.transferTo(position, end - position, target);
+			} catch(ClosedChannelException e) {
+				recoverChannel(channel, e);
+				continue;
+			}
+			
+			if(transferred <= 0) {
+				if(position >= this.channel.size()) {
+					throw new EOFException("Unexpected end of chunk file reached: " + this.chunkFile.getAbsolutePath());
+				}
+				
+				// no progress - copy the rest with a blocking write
+				ByteBuffer buffer = ByteBuffer.allocate((int) (end - position));
+				readFully(buffer, position);
+				buffer.flip();
+				while(buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				
+				break;
+			}
+			
+			position += transferred;
+		}
+		
+		return flakeMetadata.length;
+	}
+	
+	/**
+	 * Check that the given target channel is in blocking mode.
+	 * 
+	 * @param target
+	 */
+	protected static void checkBlocking(WritableByteChannel target) {
+		if(target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking()) {
+			throw new IllegalArgumentException("Target channel must be in blocking mode");
+		}
+	}
+	
+	/**
+	 * Write the data of the given flake, whether held in bytes or in a buffer,
+	 * to the given blocking channel.
+	 * 
+	 * @param flake
+	 * @param target
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	protected static long writeFlake(Flake flake, WritableByteChannel target) throws IOException {
+		ByteBuffer data = flake.asBuffer();
+		while(data.hasRemaining()) {
+			target.write(data);
+		}
+		
+		return flake.length;
+	}
+	
+	/**
+	 * Read the complete record (header and flake data) for the given metadata
+	 * using a single positional read, and decode it into a {@link Flake}.
+	 * 
+	 * @param flakeMetadata
+	 * @return
+	 * @throws IOException
+	 */
+	protected final Flake readRecord(FlakeMetadata flakeMetadata) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (recordEnd(flakeMetadata) - flakeMetadata.offset));
+		readFully(buffer, flakeMetadata.offset);
+		
+		buffer.flip();
+		return decodeFlake(buffer, flakeMetadata);
+	}
+	
+	/**
+	 * Fill the given buffer from the channel starting at the given position in
+	 * the file. As this uses positional reads, the file pointer of the handler
+	 * is never touched and multiple threads may read simultaneously.
+	 * 
+	 * @param buffer
+	 * @param position
+	 *            the position in the file to read the first remaining byte of
+	 *            the buffer from
+	 * @throws IOException
+	 */
+	protected final void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read;
+			FileChannel channel = this.channel;
+			try {
+				read = channel.read(buffer, position);
+			} catch(ClosedChannelException e) {
+				recoverChannel(channel, e);
+				continue;
+			}
+			
+			if(read < 0) {
+				throw new EOFException("Unexpected end of chunk file reached: " + this.chunkFile.getAbsolutePath());
+			}
+			
+			position += read;
+		}
+	}
+	
+	/**
+	 * Compute the position in the chunk where the given record ends. The
+	 * record ends with the byte that holds the ID of the codec used.
+	 * 
+	 * @param flakeMetadata
+	 * @return
+	 */
+	protected static long recordEnd(FlakeMetadata flakeMetadata) {
+		return flakeMetadata.offset + flakeMetadata.headerLength + flakeMetadata.length + 1;
+	}
+	
+	/**
+	 * Decode a flake from the record that starts at the current position of
+	 * the given buffer. The data is decompressed if needed.
+	 * 
+	 * @param buffer
+	 * @param flakeMetadata
+	 * @return
+	 * @throws IOException 
+	 */
+	protected static Flake decodeFlake(ByteBuffer buffer, FlakeMetadata flakeMetadata) throws IOException {
+		int nameLength = buffer.getInt();
+		buffer.position(buffer.position() + nameLength);
+		
+		buffer.getInt(); // the stored length
+		long creationTime = buffer.getLong();
+		
+		byte[] bytes = new byte[flakeMetadata.length];
+		buffer.get(bytes);
+		
+		bytes = FlakeCodecs.decode(buffer.get(), bytes);
+		return new Flake(flakeMetadata.flakeName, bytes.length, creationTime, bytes);
+	}
+	
+	/**
+	 * Encode the location of the given record as the data of a reference
+	 * record.
+	 * 
+	 * @param target
+	 * @return
+	 */
+	public static byte[] encodeReference(FlakeMetadata target) {
+		ByteBuffer buffer = ByteBuffer.allocate(REFERENCE_LENGTH);
+		buffer.putInt(target.chunk);
+		buffer.putLong(target.offset);
+		buffer.putInt(target.length);
+		buffer.putInt(target.headerLength);
+		return buffer.array();
+	}
+	
+	/**
+	 * Decode the data of a reference record into the metadata of the flake that
+	 * it was written for.
+	 * 
+	 * @param flakeName
+	 * @param data
+	 * @return
+	 */
+	public static FlakeMetadata decodeReference(String flakeName, byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int chunk = buffer.getInt();
+		long offset = buffer.getLong();
+		int length = buffer.getInt();
+		int headerLength = buffer.getInt();
+		
+		return new FlakeMetadata(flakeName, length, chunk, offset, headerLength);
+	}
+	
 }
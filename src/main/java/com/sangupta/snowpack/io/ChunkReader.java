@@ -23,11 +23,24 @@ package com.sangupta.snowpack.io;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import com.sangupta.snowpack.codec.FlakeCodecs;
 import com.sangupta.snowpack.domain.Flake;
 import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.SnowpackConfig;
 
 /**
  * Reader associated with a snowpack chunk.
@@ -37,48 +50,357 @@ import com.sangupta.snowpack.domain.FlakeMetadata;
  */
 public class ChunkReader extends ChunkIO implements Closeable {
 	
+	/**
+	 * Orders flake metadata by their offset in the chunk
+	 */
+	private static final Comparator<FlakeMetadata> OFFSET_ORDER = new Comparator<FlakeMetadata>() {
+		
+		@Override
+		public int compare(FlakeMetadata m1, FlakeMetadata m2) {
+			return m1.offset < m2.offset ? -1 : (m1.offset == m2.offset ? 0 : 1);
+		}
+		
+	};
+	
+	/**
+	 * Maximum gap between two records for them to be fetched in the same read
+	 */
+	private final int coalesceGap;
+	
+	/**
+	 * Maximum size of one coalesced read
+	 */
+	private final int maxReadSize;
+	
+	/**
+	 * Number of consecutive sequential reads after which read-ahead kicks in
+	 */
+	private static final int SEQUENTIAL_READS_TRIGGER = 2;
+	
+	/**
+	 * Number of bytes to read ahead - zero if disabled
+	 */
+	private final int readAheadSize;
+	
+	/**
+	 * The size of the chunk file - a sealed chunk does not change
+	 */
+	private final long chunkSize;
+	
+	/**
+	 * Maximum gap between two reads for them to be considered sequential
+	 */
+	private final int readAheadTriggerGap;
+	
+	/**
+	 * The sequential read stream of each reading thread - read-ahead is
+	 * tracked per thread so that threads reading different parts of the chunk
+	 * do not break each other's sequence
+	 */
+	private final ThreadLocal<ReadStream> streams = new ThreadLocal<ReadStream>() {
+		
+		@Override
+		protected ReadStream initialValue() {
+			return new ReadStream();
+		}
+		
+	};
+	
+	/**
+	 * The size of each window in which the chunk file is mapped
+	 */
+	private final long windowSize;
+	
+	/**
+	 * The memory-mapped windows over the chunk file, lazily mapped on first
+	 * access - <code>null</code> if memory-mapping is disabled
+	 */
+	private final AtomicReferenceArray<MappedByteBuffer> windows;
+	
 	/**
 	 * 
 	 * @param chunkIndex
 	 * @param baseDirectory
-	 * @throws FileNotFoundException 
+	 * @throws IOException 
 	 */
-	public ChunkReader(File chunkFile, int chunkIndex, int numFiles) throws FileNotFoundException {
+	public ChunkReader(File chunkFile, int chunkIndex, int numFiles, SnowpackConfig snowpackConfig) throws IOException {
 		super(chunkFile, chunkIndex, "r");
 		this.numFiles = numFiles;
+		this.coalesceGap = snowpackConfig.multiGetCoalesceGap;
+		this.maxReadSize = snowpackConfig.multiGetMaxReadSize;
+		this.readAheadSize = snowpackConfig.readAheadSize;
+		this.readAheadTriggerGap = snowpackConfig.readAheadTriggerGap;
+		this.chunkSize = this.channel.size();
+		
+		// a sealed chunk never changes - map it if asked for
+		if(snowpackConfig.memoryMapSealedChunks) {
+			this.windowSize = Math.min(snowpackConfig.mappedWindowSize, Integer.MAX_VALUE);
+			
+			long numWindows = (this.chunkSize + this.windowSize - 1) / this.windowSize;
+			this.windows = new AtomicReferenceArray<MappedByteBuffer>((int) numWindows);
+		} else {
+			this.windowSize = 0;
+			this.windows = null;
+		}
 	}
 
 	/**
-	 * Read flake from the file.
+	 * Read flake data from the file. The data is read using a positional read
+	 * and thus no lock is required.
 	 * 
 	 * @param flakeMetadata
 	 * @return
 	 * @throws IOException
 	 */
 	public byte[] read(FlakeMetadata flakeMetadata) throws IOException {
-		if(flakeMetadata == null) {
-			throw new IllegalArgumentException("Flake metadata cannot be null");
+		checkMetadata(flakeMetadata);
+		
+		byte[] bytes = new byte[flakeMetadata.length + 1]; // data and the codec
+		readFully(ByteBuffer.wrap(bytes), flakeMetadata.offset + flakeMetadata.headerLength);
+		
+		byte codec = bytes[flakeMetadata.length];
+		return FlakeCodecs.decode(codec, Arrays.copyOf(bytes, flakeMetadata.length));
+	}
+	
+	/**
+	 * Read the flake from the file. Header and data are fetched in one
+	 * positional read, and thus multiple threads can read the same chunk
+	 * simultaneously without waiting on each other.
+	 * 
+	 * @param flakeMetadata
+	 * @return
+	 * @throws IOException
+	 */
+	public Flake readFlake(FlakeMetadata flakeMetadata) throws IOException {
+		checkMetadata(flakeMetadata);
+		
+		if(this.windows != null) {
+			Flake flake = readMappedFlake(flakeMetadata);
+			if(flake != null) {
+				return flake;
+			}
 		}
 		
-		if(this.chunkIndex != flakeMetadata.chunk) {
-			throw new IllegalArgumentException("Flake not from this chunk");
+		if(this.readAheadSize > 0) {
+			return readSequentialFlake(flakeMetadata);
 		}
 		
-		// obtain the read lock
-		this.readWriteLock.readLock().lock();
+		return readRecord(flakeMetadata);
+	}
+	
+	/**
+	 * Read the flake while watching for sequential access. Once a thread reads
+	 * records in increasing order of offset, a larger region is read ahead and
+	 * its subsequent records are served from it.
+	 * 
+	 * @param flakeMetadata
+	 * @return
+	 * @throws IOException
+	 */
+	private Flake readSequentialFlake(FlakeMetadata flakeMetadata) throws IOException {
+		final long recordEnd = recordEnd(flakeMetadata);
+		
+		// detect the access pattern of this thread
+		ReadStream stream = this.streams.get();
+		long lastEnd = stream.lastReadEnd;
+		if(lastEnd >= 0 && flakeMetadata.offset >= lastEnd && flakeMetadata.offset - lastEnd <= this.readAheadTriggerGap) {
+			stream.sequentialReads++;
+		} else {
+			stream.sequentialReads = 0;
+		}
+		stream.lastReadEnd = recordEnd;
+		
+		// served from the region read ahead?
+		ReadAhead ahead = stream.readAhead;
+		if(ahead != null && ahead.contains(flakeMetadata.offset, recordEnd)) {
+			return ahead.decode(flakeMetadata, recordEnd);
+		}
 		
-		// read data
-		this.handler.seek(flakeMetadata.offset + flakeMetadata.headerLength);
-		byte[] bytes = new byte[flakeMetadata.length];
-		this.handler.readFully(bytes);
+		// a random read drops the region read ahead
+		stream.readAhead = null;
+		
+		if(stream.sequentialReads < SEQUENTIAL_READS_TRIGGER || recordEnd - flakeMetadata.offset >= this.readAheadSize) {
+			return readRecord(flakeMetadata);
+		}
 		
-		// release lock
-		this.readWriteLock.readLock().unlock();
+		// read ahead from this record onwards
+		long end = Math.min(flakeMetadata.offset + this.readAheadSize, this.chunkSize);
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - flakeMetadata.offset));
+		readFully(buffer, flakeMetadata.offset);
 		
-		return bytes;
+		ahead = new ReadAhead(flakeMetadata.offset, buffer);
+		stream.readAhead = ahead;
+		
+		return ahead.decode(flakeMetadata, recordEnd);
 	}
 	
-	public Flake readFlake(FlakeMetadata flakeMetadata) throws IOException {
+	/**
+	 * Read multiple flakes from this chunk. The records are sorted by their
+	 * offset and neighbouring records are fetched together in one positional
+	 * read, so that a batch costs a few sequential reads rather than one
+	 * random read per flake.
+	 * 
+	 * @param flakeMetadatas
+	 * @return the flakes in the order of their offset in the chunk
+	 * @throws IOException
+	 */
+	public List<Flake> readFlakes(List<FlakeMetadata> flakeMetadatas) throws IOException {
+		List<FlakeMetadata> sorted = new ArrayList<FlakeMetadata>(flakeMetadatas);
+		for(FlakeMetadata flakeMetadata : sorted) {
+			checkMetadata(flakeMetadata);
+		}
+		
+		Collections.sort(sorted, OFFSET_ORDER);
+		
+		List<Flake> flakes = new ArrayList<Flake>(sorted.size());
+		
+		// mapped chunks are served without any read anyways
+		if(this.windows != null) {
+			for(FlakeMetadata flakeMetadata : sorted) {
+				flakes.add(readFlake(flakeMetadata));
+			}
+			
+			return flakes;
+		}
+		
+		int runStart = 0;
+		while(runStart < sorted.size()) {
+			// find the run of records that can be read together
+			final long start = sorted.get(runStart).offset;
+			long end = recordEnd(sorted.get(runStart));
+			
+			int runEnd = runStart + 1;
+			while(runEnd < sorted.size()) {
+				FlakeMetadata next = sorted.get(runEnd);
+				long nextEnd = Math.max(end, recordEnd(next));
+				if(next.offset - end > this.coalesceGap || nextEnd - start > this.maxReadSize) {
+					break;
+				}
+				
+				end = nextEnd;
+				runEnd++;
+			}
+			
+			if(runEnd - runStart == 1) {
+				flakes.add(readRecord(sorted.get(runStart)));
+			} else {
+				// read the entire run in one go
+				ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+				readFully(buffer, start);
+				
+				for(int index = runStart; index < runEnd; index++) {
+					FlakeMetadata flakeMetadata = sorted.get(index);
+					
+					buffer.limit((int) (recordEnd(flakeMetadata) - start));
+					buffer.position((int) (flakeMetadata.offset - start));
+					flakes.add(decodeFlake(buffer, flakeMetadata));
+				}
+			}
+			
+			runStart = runEnd;
+		}
+		
+		return flakes;
+	}
+	
+	/**
+	 * Read the flake from the memory-mapped window that contains it. Unless
+	 * compressed, the flake is returned as a read-only slice of the mapping in
+	 * {@link Flake#buffer}, without copying its bytes. Returns
+	 * <code>null</code> if the record spans across two windows, in which case
+	 * it must be read from the file.
+	 * 
+	 * @param flakeMetadata
+	 * @return
+	 * @throws IOException
+	 */
+	private Flake readMappedFlake(FlakeMetadata flakeMetadata) throws IOException {
+		int windowIndex = (int) (flakeMetadata.offset / this.windowSize);
+		long windowStart = windowIndex * this.windowSize;
+		long recordEnd = recordEnd(flakeMetadata);
+		if(recordEnd > windowStart + this.windowSize) {
+			return null;
+		}
+		
+		ByteBuffer record = getWindow(windowIndex).duplicate();
+		record.position((int) (flakeMetadata.offset - windowStart));
+		record.limit((int) (recordEnd - windowStart));
+		
+		// compressed flakes need a copy anyways
+		if(record.get(record.limit() - 1) != FlakeCodecs.NONE) {
+			return decodeFlake(record, flakeMetadata);
+		}
+		
+		int nameLength = record.getInt();
+		record.position(record.position() + nameLength);
+		
+		int length = record.getInt();
+		long creationTime = record.getLong();
+		
+		record.limit(record.limit() - 1);
+		return new Flake(flakeMetadata.flakeName, length, creationTime, record.slice().asReadOnlyBuffer());
+	}
+	
+	/**
+	 * Transfer the flake straight out of the mapping when the chunk is mapped,
+	 * otherwise from the file.
+	 * 
+	 */
+	@Override
+	public long transferFlake(FlakeMetadata flakeMetadata, WritableByteChannel target) throws IOException {
+		if(this.windows != null) {
+			checkMetadata(flakeMetadata);
+			checkBlocking(target);
+			
+			Flake flake = readMappedFlake(flakeMetadata);
+			if(flake != null) {
+				return writeFlake(flake, target);
+			}
+		}
+		
+		return super.transferFlake(flakeMetadata, target);
+	}
+	
+	/**
+	 * Return the mapped window at the given index, mapping it if this is the
+	 * first access.
+	 * 
+	 * @param windowIndex
+	 * @return
+	 * @throws IOException
+	 */
+	private MappedByteBuffer getWindow(int windowIndex) throws IOException {
+		MappedByteBuffer window = this.windows.get(windowIndex);
+		if(window != null) {
+			return window;
+		}
+		
+		long windowStart = windowIndex * this.windowSize;
+		long size = Math.min(this.windowSize, this.chunkSize - windowStart);
+		while(true) {
+			FileChannel channel = this.channel;
+			try {
+				window = channel.map(MapMode.READ_ONLY, windowStart, size);
+				break;
+			} catch(ClosedChannelException e) {
+				recoverChannel(channel, e);
+			}
+		}
+		
+		// another thread may have mapped it in the meantime
+		if(this.windows.compareAndSet(windowIndex, null, window)) {
+			return window;
+		}
+		
+		return this.windows.get(windowIndex);
+	}
+	
+	/**
+	 * Check that the metadata is valid and belongs to this chunk.
+	 * 
+	 * @param flakeMetadata
+	 */
+	private void checkMetadata(FlakeMetadata flakeMetadata) {
 		if(flakeMetadata == null) {
 			throw new IllegalArgumentException("Flake metadata cannot be null");
 		}
@@ -86,36 +408,74 @@ public class ChunkReader extends ChunkIO implements Closeable {
 		if(this.chunkIndex != flakeMetadata.chunk) {
 			throw new IllegalArgumentException("Flake not from this chunk");
 		}
+	}
+	
+	/**
+	 * The state of sequential reads made by one thread.
+	 * 
+	 */
+	private static class ReadStream {
 		
-		// obtain the read lock
-		this.readWriteLock.readLock().lock();
+		/**
+		 * The position in the chunk where the last read record ended
+		 */
+		long lastReadEnd = -1;
 		
-		// read data
-		this.handler.seek(flakeMetadata.offset);
+		/**
+		 * Number of reads in sequence seen till now
+		 */
+		int sequentialReads = 0;
 		
-		int nameLength = this.handler.readInt();
-		byte[] name = new byte[nameLength];
-		this.handler.readFully(name);
+		/**
+		 * The last region read ahead of time - <code>null</code> if none
+		 */
+		ReadAhead readAhead;
 		
-		int length = this.handler.readInt();
-		long creationTime = this.handler.readLong();
+	}
+	
+	/**
+	 * A region of the chunk that has been read ahead of time.
+	 * 
+	 */
+	private static class ReadAhead {
 		
-		byte[] bytes = new byte[flakeMetadata.length];
-
-		this.handler.readFully(bytes);
+		final long start;
 		
-		// release lock
-		this.readWriteLock.readLock().unlock();
+		final ByteBuffer data;
+		
+		ReadAhead(long start, ByteBuffer data) {
+			this.start = start;
+			this.data = data;
+		}
+		
+		boolean contains(long recordStart, long recordEnd) {
+			return recordStart >= this.start && recordEnd <= this.start + this.data.capacity();
+		}
+		
+		Flake decode(FlakeMetadata flakeMetadata, long recordEnd) throws IOException {
+			ByteBuffer buffer = this.data.duplicate();
+			buffer.limit((int) (recordEnd - this.start));
+			buffer.position((int) (flakeMetadata.offset - this.start));
+			
+			return decodeFlake(buffer, flakeMetadata);
+		}
 		
-		return new Flake(flakeMetadata.flakeName, length, creationTime, bytes);
 	}
 	
 	/**
-	 * Close this chunk reader.
+	 * Close this chunk reader. The mapped windows are released rather than
+	 * unmapped right away - flakes handed out earlier may still hold slices of
+	 * them, and are unmapped once no longer referenced.
 	 * 
 	 */
 	@Override
 	public void close() throws IOException {
-		this.handler.close();
+		closeHandler();
+		
+		if(this.windows != null) {
+			for(int index = 0; index < this.windows.length(); index++) {
+				this.windows.set(index, null);
+			}
+		}
 	}
 }
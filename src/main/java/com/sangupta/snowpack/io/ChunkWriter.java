@@ -21,14 +21,32 @@
 
 package com.sangupta.snowpack.io;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.sangupta.snowpack.SnowpackMetadataDB;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.sangupta.snowpack.SnowpackConstants;
+import com.sangupta.snowpack.MetadataStore;
+import com.sangupta.snowpack.codec.FlakeCodec;
+import com.sangupta.snowpack.codec.FlakeCodecs;
 import com.sangupta.snowpack.domain.ChunkInfo;
+import com.sangupta.snowpack.domain.DurabilityMode;
 import com.sangupta.snowpack.domain.Flake;
 import com.sangupta.snowpack.domain.FlakeMetadata;
 import com.sangupta.snowpack.domain.SnowpackConfig;
@@ -52,27 +70,76 @@ public class ChunkWriter extends ChunkIO {
 	private volatile boolean closed = false;
 	
 	/**
-	 * Holds all flakes written inside this 
+	 * Holds the most recent flakes written inside this chunk by the offset of
+	 * their record, bounded by the total size of the flakes. A flake is cached
+	 * only once its record has been written.
 	 */
-	private final ConcurrentMap<String, Flake> CACHE;
+	private final Cache<Long, Flake> CACHE;
 	
 	/**
 	 * The metadata DB instance.
 	 */
-	private final SnowpackMetadataDB metadataDB;
+	private final MetadataStore metadataDB;
 	
 	/**
 	 * Write caching settings
 	 */
 	private final SnowpackConfig snowpackConfig;
 	
+	/**
+	 * Flakes waiting to be written in group-commit mode - <code>null</code> if
+	 * group commit is disabled
+	 */
+	private final Queue<PendingWrite> pendingWrites;
+	
+	/**
+	 * Held by the thread that is currently writing a batch of pending flakes
+	 */
+	private final ReentrantLock commitLock = new ReentrantLock();
+	
+	/**
+	 * Whether every write to the chunk is forced to disk right away
+	 */
+	private final boolean forceEachWrite;
+	
+	/**
+	 * Number of streaming saves still copying data into their reserved space -
+	 * guarded by the write lock
+	 */
+	private int activeStreams = 0;
+	
+	/**
+	 * Signifies that the footer index has been written - guarded by the write
+	 * lock
+	 */
+	private boolean sealed = false;
+	
+	/**
+	 * Signifies that the writer has been closed while streaming saves were
+	 * still running - the last of them closes the file - guarded by the write
+	 * lock
+	 */
+	private boolean closePending = false;
+	
+	/**
+	 * The footer index entries of the records written by this writer, in the
+	 * order in which their metadata was saved - guarded by the write lock
+	 */
+	private ChunkFooter.Builder footer = new ChunkFooter.Builder(this.chunkIndex);
+	
+	/**
+	 * The write pointer when this writer was opened - records before it were
+	 * written by an earlier run and are scanned when the chunk is sealed
+	 */
+	private final long initialWritePointer;
+	
 	/**
 	 * Create a new chunk writer on the given file.
 	 * 
 	 * @param chunkFile
 	 * @throws IOException 
 	 */
-	public ChunkWriter(File chunkFile, final long writePointer, final int chunkIndex, SnowpackMetadataDB metadataDB, SnowpackConfig snowpackConfig) throws IOException {
+	public ChunkWriter(File chunkFile, final long writePointer, final int chunkIndex, MetadataStore metadataDB, SnowpackConfig snowpackConfig) throws IOException {
 		// super constructor
 		super(chunkFile, chunkIndex, "rw");
 		
@@ -81,7 +148,17 @@ public class ChunkWriter extends ChunkIO {
 		
 		// caching settings
 		if(this.snowpackConfig.writeCachingEnabled) {
-			this.CACHE = new ConcurrentHashMap<String, Flake>();
+			this.CACHE = CacheBuilder.newBuilder()
+									 .maximumWeight(this.snowpackConfig.maxBytesInWriteCache)
+									 .weigher(new Weigher<Long, Flake>() {
+										 
+										 @Override
+										 public int weigh(Long offset, Flake flake) {
+											 return flake.length;
+										 }
+										 
+									 })
+									 .build();
 		} else {
 			this.CACHE = null;
 		}
@@ -89,100 +166,614 @@ public class ChunkWriter extends ChunkIO {
 		// init meta-data db
 		this.metadataDB = metadataDB;
 		
-		// pre-allocate disk space
-		if(!this.chunkFile.exists()) {
-			// pre-allocate size for this chunk
-			synchronized (this.handler) {
-				if(this.handler.length() == 0) {
-					this.handler.setLength(this.snowpackConfig.preAllocationChunkSize);
-				}
-				
-				this.currentWritePointer = 0;
-			}
+		DurabilityMode durabilityMode = this.snowpackConfig.durabilityMode;
+		this.forceEachWrite = durabilityMode == DurabilityMode.BATCH || durabilityMode == DurabilityMode.FLAKE;
+		
+		// every flake is forced on its own in per-flake durability mode
+		if(this.snowpackConfig.groupCommitEnabled && this.snowpackConfig.durabilityMode != DurabilityMode.FLAKE) {
+			this.pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+		} else {
+			this.pendingWrites = null;
+		}
+		
+		// pre-allocate disk space for a new chunk - the file has already been
+		// created when it was opened
+		if(this.handler.length() == 0) {
+			this.handler.setLength(this.snowpackConfig.preAllocationChunkSize);
 			
+			this.currentWritePointer = 0;
 			this.numFiles = 0;
+			this.initialWritePointer = 0;
 			return;
 		}
 		
-		// set write pointer
+		// set write pointer - flakes already in the chunk are read from disk as needed
 		if(writePointer > 0) {
 			this.currentWritePointer = writePointer;
-			
-			// read all flakes from this file and load
-			// them into the cache
-			loadFileIntoCache();
 		}
+		
+		this.initialWritePointer = this.currentWritePointer;
 	}
 	
 	/**
-	 * Read the flake from the memory and return. In no case we will
-	 * read this flake from the disk. If it is not in memory, it is not
-	 * on disk.
+	 * Read the flake from the memory and return. If the flake is no longer in
+	 * memory, or write caching is disabled, it is read from the chunk using a
+	 * positional read. Only data below the write pointer is read - and the
+	 * metadata of a record is saved only once it has been completely written.
 	 * 
 	 * @param flakeMetadata
 	 * @return
+	 * @throws IOException 
 	 */
-	public Flake readFlake(FlakeMetadata flakeMetadata) {
-		if(!this.snowpackConfig.writeCachingEnabled) {
-			throw new IllegalStateException("Write caching is disabled... cannot read simultaneously while writing.");
+	public Flake readFlake(FlakeMetadata flakeMetadata) throws IOException {
+		if(flakeMetadata.chunk != this.chunkIndex) {
+			throw new IllegalArgumentException("Flake not from this chunk");
+		}
+		
+		if(this.CACHE != null) {
+			Flake flake = CACHE.getIfPresent(flakeMetadata.offset);
+			if(flake != null) {
+				// the record may be shared by a flake of another name
+				if(!flake.flakeName.equals(flakeMetadata.flakeName)) {
+					return new Flake(flakeMetadata.flakeName, flake.length, flake.created, flake.bytes);
+				}
+				
+				return flake;
+			}
 		}
 		
-		if(!CACHE.containsKey(flakeMetadata.flakeName)) {
-			return null;
+		if(recordEnd(flakeMetadata) > this.currentWritePointer) {
+			throw new IllegalArgumentException("Flake has not yet been written to this chunk");
 		}
 		
-		return CACHE.get(flakeMetadata.flakeName);
+		return readRecord(flakeMetadata);
 	}
 
 	/**
-	 * Save the location on disk.
+	 * Save the location on disk. The record is encoded in memory and written
+	 * using a single positional write. In group-commit mode the record is
+	 * queued and written along with the records of other concurrent callers.
+	 * Use {@link #isOverflow()} to find out if the chunk is full after this.
 	 * 
 	 * @param flake
+	 * @return the metadata saved for the flake
 	 * @throws IOException 
 	 */
-	public boolean save(Flake flake) throws IOException {
+	public FlakeMetadata save(Flake flake) throws IOException {
 		if(this.closed) {
 			throw new IllegalStateException("ChunkWriter has been closed");
 		}
 		
+		// compress on the calling thread
+		FlakeMetadata flakeMetadata = save(newRecord(flake));
+		
 		// make it available to all other reading threads
-		if(this.snowpackConfig.writeCachingEnabled) {
-			CACHE.put(flake.flakeName, flake);
+		if(this.CACHE != null) {
+			this.CACHE.put(flakeMetadata.offset, flake);
+		}
+		
+		return flakeMetadata;
+	}
+	
+	/**
+	 * Save a flake whose data is already held by the given record, by writing
+	 * a small reference record that points to it. The metadata of the flake
+	 * points to the given record, and the reference record is only used to
+	 * rebuild the metadata during recovery.
+	 * 
+	 * @param flakeName
+	 * @param target
+	 * @return the metadata saved for the flake
+	 * @throws IOException
+	 */
+	public FlakeMetadata saveReference(String flakeName, FlakeMetadata target) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("ChunkWriter has been closed");
+		}
+		
+		return save(new Record(flakeName, System.currentTimeMillis(), ChunkIO.encodeReference(target), SnowpackConstants.REFERENCE_RECORD_MARKER, target));
+	}
+	
+	/**
+	 * Write the given record to the chunk and save its metadata.
+	 * 
+	 * @param record
+	 * @return
+	 * @throws IOException
+	 */
+	private FlakeMetadata save(Record record) throws IOException {
+		if(this.pendingWrites != null) {
+			return groupSave(record);
 		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(record.size);
+		record.encode(buffer);
+		buffer.flip();
 
 		// obtain a write lock
 		readWriteLock.writeLock().lock();
 		
-		long pointer = this.currentWritePointer;
-		byte[] name = flake.flakeName.getBytes();
+		long pointer;
+		try {
+			if(this.closed) {
+				throw new IllegalStateException("ChunkWriter has been closed");
+			}
+			
+			pointer = this.currentWritePointer;
+			writeFully(buffer, pointer);
+			
+			this.currentWritePointer += record.size;
+			this.numFiles++;
+			record.addTo(this.footer, pointer);
+		} finally {
+			// release the lock
+			readWriteLock.writeLock().unlock();
+		}
+		
+		if(this.forceEachWrite) {
+			forceWrite();
+		}
+		
+		// create meta object
+		FlakeMetadata flakeMeta = record.toMetadata(this.chunkIndex, pointer);
 		
+		// write the info to disk
+		this.metadataDB.save(flakeMeta);
+		
+		return flakeMeta;
+	}
+	
+	/**
+	 * Save a flake by streaming its contents from the given blocking channel
+	 * straight into the chunk, without holding the contents in memory. The
+	 * space for the record is reserved first and no lock is held while the
+	 * contents are copied, so that neither other saves nor the seal of the
+	 * chunk wait for a slow source. The record is marked incomplete until all
+	 * of its contents have been written - an incomplete record is skipped by
+	 * the footer index and by recovery. Should the chunk be sealed in the
+	 * meantime, the footer is written again once the record is complete.
+	 * 
+	 * @param flakeName
+	 * @param source
+	 * @param length
+	 * @return the metadata saved for the flake
+	 * @throws IOException
+	 */
+	public FlakeMetadata save(String flakeName, ReadableByteChannel source, int length) throws IOException {
+		if(this.closed) {
+			throw new IllegalStateException("ChunkWriter has been closed");
+		}
+		
+		// a non-blocking source would make the copy spin
+		if(source instanceof SelectableChannel && !((SelectableChannel) source).isBlocking()) {
+			throw new IllegalArgumentException("Source channel must be in blocking mode");
+		}
+		
+		byte[] name = flakeName.getBytes();
 		final int headerLength = 4 + name.length + 4 + 8; // size of name, name data size of flake, creation time
-		final int recordSize = headerLength + flake.bytes.length + 1; // the header, bytes, terminating character
-		this.currentWritePointer += recordSize;
+		final int recordSize = headerLength + length + 1; // the header, bytes, terminating character
+		
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(name.length);
+		header.put(name);
+		header.putInt(length);
+		header.putLong(SnowpackConstants.INCOMPLETE_RECORD_MARKER);
+		header.flip();
+		
+		// reserve the space - the header is written right away so that the
+		// chunk can always be scanned past this record
+		long pointer;
+		readWriteLock.writeLock().lock();
+		try {
+			if(this.closed) {
+				throw new IllegalStateException("ChunkWriter has been closed");
+			}
+			
+			pointer = this.currentWritePointer;
+			writeFully(header, pointer);
+			
+			this.currentWritePointer += recordSize;
+			this.activeStreams++;
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		
+		boolean complete = false;
+		try {
+			// copy the contents and the terminator
+			long position = pointer + headerLength;
+			transferFully(source, position, length);
+			writeFully(ByteBuffer.allocate(1), position + length); // streamed flakes are never compressed
+			
+			// mark the record complete
+			final long created = System.currentTimeMillis();
+			ByteBuffer marker = ByteBuffer.allocate(8);
+			marker.putLong(created);
+			marker.flip();
+			writeFully(marker, position - 8);
+			
+			if(this.forceEachWrite) {
+				forceWrite();
+			}
+			
+			complete = true;
+		} finally {
+			endStream(complete ? name : null, pointer, length);
+		}
+		
+		FlakeMetadata flakeMetadata = new FlakeMetadata(flakeName, length, this.chunkIndex, pointer, headerLength);
+		this.metadataDB.save(flakeMetadata);
+		return flakeMetadata;
+	}
+	
+	/**
+	 * Account for a streaming save that has ended. A completed record is added
+	 * to the footer index, which is written again if the chunk has already been
+	 * sealed. The file is closed if the writer was closed while the save was
+	 * running, and this was the last one.
+	 * 
+	 * @param name
+	 *            the name of the flake, or <code>null</code> if the record was
+	 *            not completed
+	 * @param pointer
+	 * @param length
+	 * @throws IOException
+	 */
+	private void endStream(byte[] name, long pointer, int length) throws IOException {
+		boolean release;
+		readWriteLock.writeLock().lock();
+		try {
+			this.activeStreams--;
+			
+			if(name != null) {
+				this.numFiles++;
+				this.footer.add(name, pointer, length);
+				
+				if(this.sealed) {
+					this.footer.write(this.handler, this.currentWritePointer);
+					if(this.snowpackConfig.durabilityMode != DurabilityMode.NONE) {
+						this.channel.force(true);
+					}
+				}
+			}
+			
+			release = this.closePending && this.activeStreams == 0;
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		
+		if(release) {
+			release();
+		}
+	}
+	
+	/**
+	 * Copy exactly the given number of bytes from the source to the chunk at the
+	 * given position. Uses {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}
+	 * and falls back to a small buffer when the source does not hand over data
+	 * that way.
+	 * 
+	 * @param source
+	 * @param position
+	 * @param count
+	 * @throws IOException
+	 */
+	private void transferFully(ReadableByteChannel source, long position, long count) throws IOException {
+		ByteBuffer buffer = null;
+		
+		while(count > 0) {
+			long transferred;
+			FileChannel channel = this.channel;
+			try {
+				transferred = channel.transferFrom(source, position, count);
+			} catch(ClosedChannelException e) {
+				// the data taken from the source is lost - the save fails
+				recoverChannel(channel, e);
+				throw e;
+			}
+			
+			if(transferred <= 0) {
+				// either the source is exhausted, or it has no data right now
+				if(buffer == null) {
+					buffer = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+				}
+				
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count));
+				
+				int read = source.read(buffer);
+				if(read < 0) {
+					throw new EOFException("Source ended before all flake data was read");
+				}
+				
+				// a blocking channel always returns some data
+				if(read == 0) {
+					throw new IOException("Source returned no data");
+				}
+				
+				buffer.flip();
+				writeFully(buffer, position);
+				transferred = read;
+			}
+			
+			position += transferred;
+			count -= transferred;
+		}
+	}
+	
+	/**
+	 * Save the flake using group commit. The flake is queued and whichever thread
+	 * gets hold of the commit lock drains the queue and writes all queued records
+	 * in one go - the caller returns once the batch containing its flake has been
+	 * written.
+	 * 
+	 * @param record
+	 * @return the metadata saved for the flake
+	 * @throws IOException
+	 */
+	private FlakeMetadata groupSave(Record record) throws IOException {
+		PendingWrite pending = new PendingWrite(record);
+		this.pendingWrites.add(pending);
+		
+		// try and become the writer for the queue
+		do {
+			if(!this.commitLock.tryLock()) {
+				// the current writer will pick this up
+				break;
+			}
+			
+			try {
+				while(!this.pendingWrites.isEmpty()) {
+					commitBatch();
+				}
+			} finally {
+				this.commitLock.unlock();
+			}
+			
+			// some flakes may have been queued after the last batch - but
+			// before we released the lock
+		} while(!this.pendingWrites.isEmpty());
+		
+		try {
+			pending.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for flake to be written");
+		}
+		
+		if(pending.error != null) {
+			Throwables.propagateIfPossible(pending.error, IOException.class);
+			throw new IOException("Unable to write flake", pending.error);
+		}
+		
+		return pending.metadata;
+	}
+	
+	/**
+	 * Drain the queue of pending writes, encode them into a single buffer and
+	 * write the buffer to disk. Must be called with the commit lock held.
+	 * 
+	 */
+	private void commitBatch() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		int batchSize = 0;
+		
+		PendingWrite pending;
+		while(batchSize < this.snowpackConfig.groupCommitMaxBatchSize && (pending = this.pendingWrites.poll()) != null) {
+			batch.add(pending);
+			batchSize += pending.record.size;
+		}
 		
-		this.handler.seek(pointer);
+		if(batch.isEmpty()) {
+			return;
+		}
+		
+		List<Record> records = new ArrayList<Record>(batch.size());
+		for(PendingWrite write : batch) {
+			records.add(write.record);
+		}
+		
+		try {
+			List<FlakeMetadata> metas = writeBatch(records);
+			for(int index = 0; index < batch.size(); index++) {
+				batch.get(index).metadata = metas.get(index);
+			}
+		} catch(Throwable t) {
+			for(PendingWrite write : batch) {
+				write.error = t;
+			}
+		} finally {
+			for(PendingWrite write : batch) {
+				write.done.countDown();
+			}
+		}
+	}
+	
+	/**
+	 * Save all the given flakes using a single write to the chunk. The metadata
+	 * for all of them is committed to the metadata DB as one batch. The caller
+	 * must make sure that the batch fits in the chunk. Use {@link #isOverflow()}
+	 * to find out if the chunk is full after this.
+	 * 
+	 * @param flakes
+	 * @param targets
+	 *            for each flake, the record already holding its data - in which
+	 *            case a reference record is written as in
+	 *            {@link #saveReference(String, FlakeMetadata)} - or
+	 *            <code>null</code> to write the flake data
+	 * @return the metadata saved for the flakes, in the same order
+	 * @throws IOException
+	 */
+	public List<FlakeMetadata> saveAll(List<Flake> flakes, List<FlakeMetadata> targets) throws IOException {
 		if(this.closed) {
 			throw new IllegalStateException("ChunkWriter has been closed");
 		}
 		
-		this.handler.writeInt(name.length);
-		this.handler.write(name);
-		this.handler.writeInt(flake.length);
-		this.handler.writeLong(flake.created);
-		this.handler.write(flake.bytes);
-		this.handler.write(0); // write a null terminator to the file
-		this.numFiles++;
+		if(flakes.isEmpty()) {
+			return Collections.emptyList();
+		}
 		
-		// release the lock
-		readWriteLock.writeLock().unlock();
+		List<Record> records = new ArrayList<Record>(flakes.size());
+		for(int index = 0; index < flakes.size(); index++) {
+			Flake flake = flakes.get(index);
+			FlakeMetadata target = targets.get(index);
+			if(target != null) {
+				records.add(new Record(flake.flakeName, flake.created, ChunkIO.encodeReference(target), SnowpackConstants.REFERENCE_RECORD_MARKER, target));
+			} else {
+				records.add(newRecord(flake));
+			}
+		}
 		
-		// create meta object
-		FlakeMetadata flakeMeta = new FlakeMetadata(flake, this.chunkIndex, pointer, headerLength);
+		List<FlakeMetadata> metas;
+		if(this.snowpackConfig.durabilityMode == DurabilityMode.FLAKE) {
+			metas = new ArrayList<FlakeMetadata>(records.size());
+			for(Record record : records) {
+				metas.addAll(writeBatch(Collections.singletonList(record)));
+			}
+		} else {
+			metas = writeBatch(records);
+		}
 		
-		// write the info to disk
-		this.metadataDB.save(flakeMeta);
+		// make them available to all other reading threads
+		if(this.CACHE != null) {
+			for(int index = 0; index < flakes.size(); index++) {
+				if(targets.get(index) == null) {
+					this.CACHE.put(metas.get(index).offset, flakes.get(index));
+				}
+			}
+		}
 		
-		return isOverflow();
+		return metas;
+	}
+	
+	/**
+	 * Encode all records into one buffer, write it to disk and then commit the
+	 * metadata of all flakes in one go.
+	 * 
+	 * @param records
+	 * @return the metadata saved for the records, in the same order
+	 * @throws IOException
+	 */
+	private List<FlakeMetadata> writeBatch(List<Record> records) throws IOException {
+		final int size = records.size();
+		
+		int batchSize = 0;
+		for(Record record : records) {
+			batchSize += record.size;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(batchSize);
+		for(Record record : records) {
+			record.encode(buffer);
+		}
+		buffer.flip();
+		
+		long pointer;
+		readWriteLock.writeLock().lock();
+		try {
+			if(this.closed) {
+				throw new IllegalStateException("ChunkWriter has been closed");
+			}
+			
+			pointer = this.currentWritePointer;
+			writeFully(buffer, pointer);
+			
+			this.currentWritePointer += batchSize;
+			this.numFiles += size;
+			
+			long offset = pointer;
+			for(Record record : records) {
+				record.addTo(this.footer, offset);
+				offset += record.size;
+			}
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		
+		if(this.forceEachWrite) {
+			forceWrite();
+		}
+		
+		List<FlakeMetadata> metas = new ArrayList<FlakeMetadata>(size);
+		for(Record record : records) {
+			metas.add(record.toMetadata(this.chunkIndex, pointer));
+			pointer += record.size;
+		}
+		
+		this.metadataDB.saveAll(metas);
+		return metas;
+	}
+	
+	/**
+	 * Create the record to be stored for the given flake. The flake data is
+	 * compressed if a codec is configured, the flake is large enough and the
+	 * data compresses well enough.
+	 * 
+	 * @param flake
+	 * @return
+	 */
+	private Record newRecord(Flake flake) {
+		FlakeCodec codec = this.snowpackConfig.compressionCodec;
+		if(codec != null && flake.bytes.length >= this.snowpackConfig.compressionThreshold) {
+			byte[] compressed = FlakeCodecs.encode(codec, flake.bytes, this.snowpackConfig.compressionMaxRatio);
+			if(compressed != null) {
+				return new Record(flake.flakeName, flake.created, compressed, codec.getID(), null);
+			}
+		}
+		
+		return new Record(flake.flakeName, flake.created, flake.bytes, FlakeCodecs.NONE, null);
+	}
+	
+	/**
+	 * Write the entire buffer at the given position in the chunk.
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			FileChannel channel = this.channel;
+			try {
+				position += channel.write(buffer, position);
+			} catch(ClosedChannelException e) {
+				recoverChannel(channel, e);
+			}
+		}
+	}
+	
+	/**
+	 * Force the data written so far to the disk. Does nothing if the writer has
+	 * been sealed, as sealing forces the data itself.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		if(this.closed) {
+			return;
+		}
+		
+		forceWrite();
+	}
+	
+	/**
+	 * Force the data written so far to the disk.
+	 * 
+	 * @throws IOException
+	 */
+	private void forceWrite() throws IOException {
+		FileChannel channel = this.channel;
+		try {
+			channel.force(false);
+		} catch(ClosedChannelException e) {
+			// a concurrent roll over sealed the chunk - which forced our data as well
+			if(this.closed) {
+				return;
+			}
+			
+			recoverChannel(channel, e);
+			this.channel.force(false);
+		}
 	}
 	
 	/**
@@ -205,16 +796,63 @@ public class ChunkWriter extends ChunkIO {
 	
 	/**
 	 * Return the {@link ChunkReader} object for this {@link ChunkWriter} object.
+	 * The chunk is sealed first. The writer keeps serving reads until it is
+	 * closed by the caller, once the reader has taken over.
 	 * 
 	 * @return
 	 * @throws IOException 
 	 */
 	public ChunkReader getReader() throws IOException {
-		// close current file
-		this.close();
+		// write the footer index
+		this.seal();
 		
 		// open the reader
-		return new ChunkReader(this.chunkFile, this.chunkIndex, this.numFiles);
+		return new ChunkReader(this.chunkFile, this.chunkIndex, this.numFiles, this.snowpackConfig);
+	}
+	
+	/**
+	 * Seal this chunk by writing the footer index after the last record. No more
+	 * flakes can be written to the chunk after this.
+	 * 
+	 * @throws IOException
+	 */
+	public void seal() throws IOException {
+		readWriteLock.writeLock().lock();
+		try {
+			if(this.closed) {
+				return;
+			}
+			
+			this.closed = true;
+			
+			// records written before this writer was opened are not known to it
+			if(this.initialWritePointer > 0) {
+				ChunkFooter.Builder footer = new ChunkFooter.Builder(this.chunkIndex);
+				footer.scan(this.chunkFile, this.initialWritePointer);
+				footer.addAll(this.footer);
+				this.footer = footer;
+			}
+			
+			// streaming saves still running add themselves once complete
+			this.footer.write(this.handler, this.currentWritePointer);
+			this.sealed = true;
+			
+			if(this.snowpackConfig.durabilityMode != DurabilityMode.NONE) {
+				this.channel.force(true);
+			}
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Check if this writer has been sealed or closed, after which no more flakes
+	 * can be saved to it.
+	 * 
+	 * @return
+	 */
+	public boolean isClosed() {
+		return this.closed;
 	}
 	
 	/**
@@ -227,21 +865,45 @@ public class ChunkWriter extends ChunkIO {
 	}
 	
 	/**
-	 * Close this writer.
+	 * Close this writer. If streaming saves are still copying their data, the
+	 * file is closed once the last of them ends.
 	 * @throws IOException 
 	 * 
 	 */
 	@Override
 	public void close() throws IOException {
-		// mark we are closing
-		this.closed = true;
+		readWriteLock.writeLock().lock();
+		try {
+			// mark we are closing
+			this.closed = true;
+			
+			if(this.activeStreams > 0) {
+				this.closePending = true;
+				return;
+			}
+		} finally {
+			readWriteLock.writeLock().unlock();
+		}
+		
+		release();
+	}
+	
+	/**
+	 * Force the data to disk, close the file and clear the cache.
+	 * 
+	 * @throws IOException
+	 */
+	private void release() throws IOException {
+		if(this.snowpackConfig.durabilityMode != DurabilityMode.NONE && this.channel.isOpen()) {
+			this.channel.force(true);
+		}
 		
 		// close file handler
-		this.handler.close();
+		closeHandler();
 		
 		// clear up the cache
 		if(this.CACHE != null) {
-			this.CACHE.clear();
+			this.CACHE.invalidateAll();
 		}
 	}
 
@@ -262,50 +924,84 @@ public class ChunkWriter extends ChunkIO {
 	}
 	
 	/**
-	 * Load the contents of the entire file into the cache
-	 * @throws IOException 
+	 * A flake waiting to be written in group-commit mode.
 	 * 
 	 */
-	private void loadFileIntoCache() throws IOException {
-		if(!this.snowpackConfig.writeCachingEnabled) {
-			return;
+	private static class PendingWrite {
+		
+		final Record record;
+		
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		volatile Throwable error;
+		
+		volatile FlakeMetadata metadata;
+		
+		PendingWrite(Record record) {
+			this.record = record;
 		}
 		
-		RandomAccessFile handler = null;
-		try {
-			handler = new RandomAccessFile(this.chunkFile, "r");
-			
-			// start reading byte by byte
-			final long length = handler.length();
-			while(handler.getFilePointer() < length) {
-				int nameLength = handler.readInt();
-//				if(nameLength <= 0) {
-//					break;
-//				}
-				
-				byte[] name = new byte[nameLength];
-				handler.readFully(name);
-				
-				int flakeLength = handler.readInt();
-				long created = handler.readLong();
-				
-				byte[] bytes = new byte[flakeLength];
-				handler.readFully(bytes);
-				
-				byte terminator = handler.readByte(); // write a null terminator to the file
-				if(terminator != 0) {
-					throw new IllegalStateException("Existing chunk seems corrupted");
-				}
-				
-				String flakeName = new String(name);
-				Flake flake = new Flake(flakeName, flakeLength, created, bytes);
-				CACHE.put(flakeName, flake);
+	}
+	
+	/**
+	 * A flake encoded the way it is stored in the chunk - the header, the data
+	 * which may be compressed, and the ID of the codec used. A reference record
+	 * holds the location of the record with the flake data instead.
+	 * 
+	 */
+	private static class Record {
+		
+		final String flakeName;
+		
+		final long created;
+		
+		final byte[] name;
+		
+		final byte[] data;
+		
+		final byte codec;
+		
+		final FlakeMetadata target;
+		
+		final int headerLength;
+		
+		final int size;
+		
+		Record(String flakeName, long created, byte[] data, byte codec, FlakeMetadata target) {
+			this.flakeName = flakeName;
+			this.created = created;
+			this.name = flakeName.getBytes();
+			this.data = data;
+			this.codec = codec;
+			this.target = target;
+			this.headerLength = 4 + this.name.length + 4 + 8; // size of name, name data size of flake, creation time
+			this.size = this.headerLength + data.length + 1; // the header, bytes, codec
+		}
+		
+		void encode(ByteBuffer buffer) {
+			buffer.putInt(this.name.length);
+			buffer.put(this.name);
+			buffer.putInt(this.data.length);
+			buffer.putLong(this.created);
+			buffer.put(this.data);
+			buffer.put(this.codec); // zero, the old null terminator, if not compressed
+		}
+		
+		void addTo(ChunkFooter.Builder footer, long offset) {
+			if(this.target != null) {
+				footer.addReference(this.name, this.target);
+			} else {
+				footer.add(this.name, offset, this.data.length);
 			}
-		} finally {
-			// close the handler
-			if(handler != null) {
-				handler.close();
+		}
+		
+		FlakeMetadata toMetadata(int chunk, long offset) {
+			if(this.target != null) {
+				return new FlakeMetadata(this.flakeName, this.target.length, this.target.chunk, this.target.offset, this.target.headerLength);
 			}
+			
+			return new FlakeMetadata(this.flakeName, this.data.length, chunk, offset, this.headerLength);
 		}
+		
 	}
 }
@@ -1,24 +1,1330 @@
 package com.sangupta.snowpack;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.Pipe;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
 
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.sangupta.snowpack.codec.DeflateCodec;
+import com.sangupta.snowpack.domain.ChunkInfo;
+import com.sangupta.snowpack.domain.DurabilityMode;
 import com.sangupta.snowpack.domain.Flake;
+import com.sangupta.snowpack.domain.FlakeMetadata;
+import com.sangupta.snowpack.domain.MetadataEngine;
+import com.sangupta.snowpack.domain.SnowpackConfig;
+import com.sangupta.snowpack.domain.SnowpackMeta;
+import com.sangupta.snowpack.io.ChunkFooter;
 
 /**
  * A test pack to make sure that entire {@link Snowpack} works just fine
  * by creating a new pack, adding files, retrieving files, the closing it out
  * and then re-opening and working over it.
  * 
- * This is not a <code>JUnit</code> based test case.
+ * The <code>main</code> method runs a large pack end to end and is not a
+ * <code>JUnit</code> based test case. The <code>JUnit</code> test cases below
+ * exercise individual features over small packs.
  * 
  * @author sangupta
  *
  */
 public class SnowpackTest {
+	
+	/**
+	 * Directories created by the test cases, removed after each test
+	 */
+	private final List<File> directories = new ArrayList<File>();
+	
+	@After
+	public void cleanUp() {
+		for(File directory : this.directories) {
+			FileUtils.deleteQuietly(directory);
+		}
+	}
+	
+	@Test
+	public void testMemoryMappedRead() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.memoryMapSealedChunks = true;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "m", 2000);
+		snowpack.close();
+		
+		// all but the last chunks are sealed and mapped now
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 2000; index++) {
+			Flake flake = snowpack.getFlake("File-m-" + index);
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), flake.getBytes());
+		}
+		
+		// flakes of a mapped chunk are slices of the mapping, and never copied
+		Flake flake = snowpack.getFlake("File-m-10");
+		Assert.assertNull(flake.bytes);
+		Assert.assertTrue(flake.buffer.isReadOnly());
+		Assert.assertArrayEquals(getFlakeData("10"), flake.getBytes());
+		Assert.assertNull(flake.bytes);
+		
+		// and they are cached and transferred like any other flake
+		Assert.assertSame(flake, snowpack.getFlake("File-m-10"));
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Assert.assertTrue(snowpack.transferFlake("File-m-10", Channels.newChannel(stream)));
+		Assert.assertArrayEquals(getFlakeData("10"), stream.toByteArray());
+		snowpack.close();
+	}
+	
+	@Test
+	public void testTransferFlake() throws IOException {
+		Snowpack snowpack = new Snowpack(newDirectory(), smallConfig());
+		writeFiles(snowpack, "t", 500);
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		Assert.assertTrue(snowpack.transferFlake("File-t-42", Channels.newChannel(stream)));
+		Assert.assertArrayEquals(getFlakeData("42"), stream.toByteArray());
+		
+		// a non-blocking target would make the transfer spin
+		Pipe pipe = Pipe.open();
+		pipe.sink().configureBlocking(false);
+		try {
+			snowpack.transferFlake("File-t-42", pipe.sink());
+			Assert.fail("Non-blocking target was accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		} finally {
+			pipe.sink().close();
+			pipe.source().close();
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testStaleReadNotCached() throws IOException {
+		SnowpackCache cache = new SnowpackCache(new SnowpackConfig());
+		byte[] bytes = getFlakeData("stale");
+		
+		// a read that started before a save is not cached
+		long stamp = cache.stamp("flake");
+		cache.remove("flake");
+		cache.put(new Flake("flake", bytes.length, 0, bytes), stamp);
+		Assert.assertNull(cache.get("flake"));
+		
+		// but one started after it is
+		stamp = cache.stamp("flake");
+		cache.put(new Flake("flake", bytes.length, 0, bytes), stamp);
+		Assert.assertNotNull(cache.get("flake"));
+		
+		cache.close();
+	}
+	
+	@Test
+	public void testOffHeapCacheRebalance() {
+		// two slabs only - both taken by the smallest size class
+		OffHeapFlakeCache cache = new OffHeapFlakeCache(8 * 1024, 4 * 1024);
+		byte[] small = new byte[32];
+		for(int index = 0; index < 200; index++) {
+			Assert.assertTrue(cache.put(new Flake("small-" + index, small.length, 0, small)));
+		}
+		
+		// a larger flake still finds a slot
+		byte[] large = new byte[2000];
+		large[1999] = 7;
+		Assert.assertTrue(cache.put(new Flake("large", large.length, 0, large)));
+		Assert.assertEquals(64 * small.length + large.length, cache.getWeightedSize());
+		
+		Flake flake = cache.take("large");
+		Assert.assertArrayEquals(large, flake.bytes);
+		
+		// the remaining slab keeps serving the small flakes
+		Assert.assertTrue(cache.put(new Flake("small-200", small.length, 0, small)));
+		Assert.assertTrue(cache.containsKey("small-200"));
+		Assert.assertEquals(64 * small.length, cache.getWeightedSize());
+	}
+	
+	@Test
+	public void testReadAhead() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.readAheadSize = 16 * 1024;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 1000);
+		snowpack.close();
+		
+		// read sealed chunks in sequence, skipping some flakes now and then
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 1000; index += (index % 7 == 0 ? 3 : 1)) {
+			Flake flake = snowpack.getFlake("File-a-" + index);
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), flake.getBytes());
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testRecoverFromFooter() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 1500);
+		snowpack.close();
+		
+		// the reopened writer seals a chunk that was partly written before
+		snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "b", 1500);
+		snowpack.close();
+		
+		File chunkFile = new File(root, SnowpackConstants.SNOWFLAKE_FILENAME_PREFIX + 0 + SnowpackConstants.SNOWFLAKE_FILENAME_SUFFIX);
+		ChunkFooter footer = ChunkFooter.read(chunkFile);
+		Assert.assertNotNull(footer);
+		Assert.assertFalse(footer.entries.isEmpty());
+		
+		SnowpackRecover.recover(root);
+		
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 1500; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-b-" + index).getBytes());
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testBulkSave() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.maxBytesInSaveBatch = 8 * 1024;
+		
+		Map<String, byte[]> flakes = new LinkedHashMap<String, byte[]>();
+		for(int index = 0; index < 3000; index++) {
+			flakes.put("File-a-" + index, getFlakeData(String.valueOf(index)));
+		}
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		Assert.assertEquals(3000, snowpack.saveFlakes(flakes));
+		snowpack.close();
+		
+		snowpack = new Snowpack(root, config);
+		for(Map.Entry<String, byte[]> entry : flakes.entrySet()) {
+			Assert.assertArrayEquals(entry.getValue(), snowpack.getFlake(entry.getKey()).getBytes());
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testGroupCommitSave() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.groupCommitEnabled = true;
+		
+		final Snowpack snowpack = new Snowpack(root, config);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int thread = 0; thread < 4; thread++) {
+			final String prefix = "t" + thread;
+			threads.add(new Thread() {
+				
+				@Override
+				public void run() {
+					writeFiles(snowpack, prefix, 1000);
+				}
+				
+			});
+		}
+		
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		snowpack.close();
+		
+		Snowpack reopened = new Snowpack(root, config);
+		for(int thread = 0; thread < 4; thread++) {
+			for(int index = 0; index < 1000; index++) {
+				Flake flake = reopened.getFlake("File-t" + thread + "-" + index);
+				Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), flake.getBytes());
+			}
+		}
+		
+		reopened.close();
+	}
+	
+	@Test
+	public void testOrphanChunksOpened() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 3000);
+		snowpack.close();
+		
+		// the snowpack info as saved right after the first chunk was sealed
+		ChunkInfo first = new ChunkInfo();
+		first.chunkID = 0;
+		first.numFiles = ChunkFooter.read(new File(root, SnowpackConstants.SNOWFLAKE_FILENAME_PREFIX + 0 + SnowpackConstants.SNOWFLAKE_FILENAME_SUFFIX)).entries.size();
+		first.writePointer = -1;
+		
+		SnowpackMeta meta = new SnowpackMeta();
+		meta.updateChunks(Collections.singletonList(first));
+		FileUtils.writeStringToFile(new File(root, SnowpackConstants.SNOWPACK_INFO_FILENAME), new Gson().toJson(meta));
+		
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 3000; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+		}
+		
+		// new flakes go to new chunks
+		writeFiles(snowpack, "b", 100);
+		Assert.assertArrayEquals(getFlakeData("99"), snowpack.getFlake("File-b-99").getBytes());
+		snowpack.close();
+	}
+	
+	@Test
+	public void testCompressedRoundTrip() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.compressionCodec = new CustomCodec();
+		config.compressionThreshold = 64;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 200; index++) {
+			snowpack.saveFlake("File-z-" + index, getCompressibleData(index));
+		}
+		
+		// small flakes are stored as is
+		writeFiles(snowpack, "a", 10);
+		snowpack.close();
+		
+		File chunkFile = new File(root, SnowpackConstants.SNOWFLAKE_FILENAME_PREFIX + 0 + SnowpackConstants.SNOWFLAKE_FILENAME_SUFFIX);
+		Assert.assertTrue(chunkFile.length() < 200 * getCompressibleData(0).length / 2);
+		
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 200; index++) {
+			Assert.assertArrayEquals(getCompressibleData(index), snowpack.getFlake("File-z-" + index).getBytes());
+		}
+		for(int index = 0; index < 10; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testDedupReferenceSurvivesReopen() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.dedupEnabled = true;
+		config.dedupMinSize = 16;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		byte[] shared = getFlakeData("shared-data");
+		snowpack.saveFlake("original", shared);
+		
+		// fill a few chunks so that some references point to sealed chunks
+		writeFiles(snowpack, "a", 2000);
+		for(int index = 0; index < 10; index++) {
+			snowpack.saveFlake("copy-" + index, shared);
+		}
+		
+		// an overwritten reference
+		snowpack.saveFlake("copy-0", getFlakeData("other-data"));
+		
+		// and seal the chunk holding the reference records
+		writeFiles(snowpack, "b", 1500);
+		snowpack.close();
+		
+		snowpack = new Snowpack(root, config);
+		assertCopies(snowpack, shared);
+		snowpack.close();
+		
+		// the references are rebuilt by recovery
+		SnowpackRecover.recover(root);
+		
+		snowpack = new Snowpack(root, config);
+		assertCopies(snowpack, shared);
+		for(int index = 0; index < 2000; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+		}
+		
+		snowpack.close();
+	}
+	
+	private static void assertCopies(Snowpack snowpack, byte[] shared) throws IOException {
+		Assert.assertArrayEquals(shared, snowpack.getFlake("original").getBytes());
+		Assert.assertArrayEquals(getFlakeData("other-data"), snowpack.getFlake("copy-0").getBytes());
+		for(int index = 1; index < 10; index++) {
+			Assert.assertArrayEquals(shared, snowpack.getFlake("copy-" + index).getBytes());
+		}
+	}
+	
+	@Test
+	public void testOffHeapIndexUpdate() {
+		File root = newDirectory();
+		OffHeapMetadataIndex index = new OffHeapMetadataIndex(root, 100, 1000, false);
+		for(int round = 0; round < 50; round++) {
+			for(int flake = 0; flake < 100; flake++) {
+				index.save(new FlakeMetadata("flake-" + flake, round, 1, round * 1000l + flake, 20));
+			}
+		}
+		Assert.assertEquals(100, index.size());
+		index.close();
+		
+		index = new OffHeapMetadataIndex(root, 100, 1000, false);
+		Assert.assertEquals(100, index.size());
+		for(int flake = 0; flake < 100; flake++) {
+			FlakeMetadata flakeMetadata = index.get("flake-" + flake);
+			Assert.assertEquals(49 * 1000l + flake, flakeMetadata.offset);
+			Assert.assertEquals(49, flakeMetadata.length);
+		}
+		index.close();
+	}
+	
+	@Test
+	public void testOffHeapIndexNeedsListingDisabled() throws IOException {
+		SnowpackConfig config = smallConfig();
+		config.metadataEngine = MetadataEngine.OFF_HEAP_INDEX;
+		try {
+			new Snowpack(newDirectory(), config);
+			Assert.fail("listing is not possible with the off-heap index");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		
+		config.flakeListingEnabled = false;
+		Snowpack snowpack = new Snowpack(newDirectory(), config);
+		writeFiles(snowpack, "a", 100);
+		Assert.assertArrayEquals(getFlakeData("42"), snowpack.getFlake("File-a-42").getBytes());
+		try {
+			snowpack.listFlakes("File-");
+			Assert.fail("listing has been disabled");
+		} catch(UnsupportedOperationException e) {
+			// expected
+		}
+		
+		snowpack.close();
+	}
+	
+	@Test
+	public void testShardedMetadata() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.metadataShards = 4;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 1000);
+		Map<String, byte[]> flakes = new LinkedHashMap<String, byte[]>();
+		for(int index = 0; index < 1000; index++) {
+			flakes.put("File-b-" + index, getFlakeData(String.valueOf(index)));
+		}
+		snowpack.saveFlakes(flakes);
+		snowpack.close();
+		
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 1000; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-b-" + index).getBytes());
+		}
+		snowpack.close();
+		
+		// a different number of shards is refused
+		config.metadataShards = 2;
+		try {
+			new Snowpack(root, config);
+			Assert.fail("metadata has 4 shards");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		
+		// the number of shards does not depend on the shards found on disk
+		FileUtils.deleteDirectory(new File(root, SnowpackConstants.SNOWPACK_METADATA_DIRECTORY + File.separator + SnowpackConstants.SNOWPACK_METADATA_SHARD_PREFIX + 3));
+		Assert.assertEquals(4, SnowpackMetadataDB.getShardCount(root));
+	}
+	
+	@Test
+	public void testMetadataVarintRoundTrip() {
+		FlakeMetadata flakeMetadata = new FlakeMetadata("flake", 123456, 70000, 5l * 1024 * 1024 * 1024 + 17, 4 + 5 + 4 + 8);
+		byte[] bytes = flakeMetadata.asBytes();
+		Assert.assertTrue(bytes.length < 20);
+		
+		FlakeMetadata read = new FlakeMetadata("flake", bytes);
+		Assert.assertEquals(123456, read.length);
+		Assert.assertEquals(70000, read.chunk);
+		Assert.assertEquals(5l * 1024 * 1024 * 1024 + 17, read.offset);
+		Assert.assertEquals(4 + 5 + 4 + 8, read.headerLength);
+	}
+	
+	@Test
+	public void testMetadataLegacyFormat() {
+		ByteBuffer buffer = ByteBuffer.allocate(20);
+		buffer.putInt(1000);
+		buffer.putInt(3);
+		buffer.putLong(65536);
+		buffer.putInt(4 + 5 + 4 + 8);
+		
+		FlakeMetadata read = new FlakeMetadata("flake", buffer.array());
+		Assert.assertEquals(1000, read.length);
+		Assert.assertEquals(3, read.chunk);
+		Assert.assertEquals(65536, read.offset);
+		Assert.assertEquals(4 + 5 + 4 + 8, read.headerLength);
+	}
+	
+	@Test
+	public void testMetadataFlaggedHeaderLength() {
+		// a flake pointing to the record of a flake with another name
+		FlakeMetadata flakeMetadata = new FlakeMetadata("flake", 10, 1, 100, 4 + 20 + 4 + 8);
+		byte[] bytes = flakeMetadata.asBytes();
+		Assert.assertTrue(bytes.length > new FlakeMetadata("flake", 10, 1, 100, 4 + 5 + 4 + 8).asBytes().length);
+		
+		FlakeMetadata read = new FlakeMetadata("flake", bytes);
+		Assert.assertEquals(4 + 20 + 4 + 8, read.headerLength);
+		Assert.assertEquals(100, read.offset);
+	}
+	
+	@Test
+	public void testMetadataSnapshotWithJournal() throws IOException {
+		File root = newDirectory();
+		long interval = 60 * 60 * 1000l;
+		
+		SnowpackMetadataDB db = new SnowpackMetadataDB(root, false, 0, 1, false, 0, 0, false, true, interval);
+		for(int index = 0; index < 100; index++) {
+			db.save(new FlakeMetadata("flake-" + index, 10, 1, index * 100, 30));
+		}
+		db.takeSnapshot();
+		
+		// changes after the snapshot go to the journal
+		for(int index = 0; index < 10; index++) {
+			db.save(new FlakeMetadata("flake-" + index, 20, 2, index * 200, 30));
+		}
+		db.remove("flake-99");
+		db.save(new FlakeMetadata("flake-new", 5, 3, 0, 30));
+		db.close();
+		
+		Assert.assertTrue(new File(root, SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_DIRECTORY + File.separator + SnowpackConstants.SNOWPACK_METADATA_SNAPSHOT_FILENAME).exists());
+		
+		// the snapshot is mapped on open, and the journaled flakes are read from the database
+		db = new SnowpackMetadataDB(root, false, 0, 1, false, 0, 0, false, true, interval);
+		for(int index = 0; index < 99; index++) {
+			FlakeMetadata flakeMetadata = db.get("flake-" + index);
+			Assert.assertNotNull(flakeMetadata);
+			if(index < 10) {
+				Assert.assertEquals(20, flakeMetadata.length);
+				Assert.assertEquals(2, flakeMetadata.chunk);
+				Assert.assertEquals(index * 200, flakeMetadata.offset);
+			} else {
+				Assert.assertEquals(10, flakeMetadata.length);
+				Assert.assertEquals(1, flakeMetadata.chunk);
+				Assert.assertEquals(index * 100, flakeMetadata.offset);
+			}
+		}
+		Assert.assertNull(db.get("flake-99"));
+		Assert.assertFalse(db.has("flake-99"));
+		Assert.assertEquals(5, db.get("flake-new").length);
+		db.close();
+	}
+	
+	@Test
+	public void testListFlakes() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.metadataShards = 3;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 50);
+		writeFiles(snowpack, "b", 50);
+		
+		List<String> expected = new ArrayList<String>();
+		for(int index = 0; index < 50; index++) {
+			expected.add("File-a-" + index);
+		}
+		Collections.sort(expected);
+		
+		// names across all shards are listed in order, and only those with the prefix
+		FlakeIterator iterator = snowpack.listFlakes("File-a-");
+		List<String> listed = new ArrayList<String>();
+		while(iterator.hasNext()) {
+			listed.add(iterator.next().flakeName);
+		}
+		iterator.close();
+		Assert.assertEquals(expected, listed);
+		
+		// a page continues right after the token of the earlier page
+		iterator = snowpack.listFlakes("File-a-");
+		listed.clear();
+		for(int index = 0; index < 20; index++) {
+			listed.add(iterator.next().flakeName);
+		}
+		String pageToken = iterator.getPageToken();
+		iterator.close();
+		Assert.assertEquals(expected.get(19), pageToken);
+		
+		iterator = snowpack.listFlakes("File-a-", pageToken);
+		while(iterator.hasNext()) {
+			FlakeMetadata flakeMetadata = iterator.next();
+			listed.add(flakeMetadata.flakeName);
+			Assert.assertNotNull(snowpack.getFlake(flakeMetadata.flakeName));
+		}
+		Assert.assertEquals(expected.get(49), iterator.getPageToken());
+		iterator.close();
+		Assert.assertEquals(expected, listed);
+		
+		// no prefix lists every flake
+		iterator = snowpack.listFlakes(null);
+		int count = 0;
+		while(iterator.hasNext()) {
+			iterator.next();
+			count++;
+		}
+		iterator.close();
+		Assert.assertEquals(100, count);
+		
+		Assert.assertFalse(snowpack.listFlakes("File-c-").hasNext());
+		snowpack.close();
+	}
+	
+	@Test
+	public void testInterruptedRead() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.readCachingEnabled = false;
+		config.writeCachingEnabled = false;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "a", 100);
+		Assert.assertNotNull(snowpack.getFlake("File-a-0"));
+		
+		// the interrupted reader fails
+		Thread.currentThread().interrupt();
+		try {
+			snowpack.getFlake("File-a-0");
+			Assert.fail("reader was interrupted");
+		} catch(ClosedByInterruptException e) {
+			// expected
+		} finally {
+			Thread.interrupted();
+		}
+		
+		// but the chunk stays readable for everyone else
+		for(int index = 0; index < 100; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+		}
+		snowpack.close();
+	}
+	
+	@Test
+	public void testMultiGet() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.readCachingEnabled = false;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "g", 1000);
+		
+		// names from sealed chunks and the active one, in no particular order
+		List<String> names = new ArrayList<String>();
+		for(int index = 999; index >= 0; index -= 3) {
+			names.add("File-g-" + index);
+		}
+		names.add("File-g-999");
+		names.add("missing");
+		
+		Map<String, Flake> flakes = snowpack.getFlakes(names);
+		Assert.assertEquals(334, flakes.size());
+		Assert.assertFalse(flakes.containsKey("missing"));
+		for(int index = 999; index >= 0; index -= 3) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), flakes.get("File-g-" + index).getBytes());
+		}
+		
+		// records too far apart are read on their own
+		config.multiGetCoalesceGap = 0;
+		config.multiGetMaxReadSize = 64;
+		snowpack.close();
+		snowpack = new Snowpack(root, config);
+		flakes = snowpack.getFlakes(names);
+		Assert.assertEquals(334, flakes.size());
+		for(int index = 999; index >= 0; index -= 3) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), flakes.get("File-g-" + index).getBytes());
+		}
+		snowpack.close();
+	}
+	
+	@Test
+	public void testAsyncOperations() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		List<ListenableFuture<Boolean>> saves = new ArrayList<ListenableFuture<Boolean>>();
+		for(int index = 0; index < 100; index++) {
+			saves.add(snowpack.saveFlakeAsync("File-x-" + index, getFlakeData(String.valueOf(index))));
+		}
+		for(ListenableFuture<Boolean> save : saves) {
+			Assert.assertTrue(save.get());
+		}
+		
+		for(int index = 0; index < 100; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlakeAsync("File-x-" + index).get().getBytes());
+		}
+		Assert.assertNull(snowpack.getFlakeAsync("missing").get());
+		snowpack.close();
+		
+		// once closed, operations fail right away
+		try {
+			snowpack.getFlakeAsync("File-x-0").get();
+			Assert.fail("snowpack is closed");
+		} catch(ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		
+		// a full queue fails the operation instead of blocking the caller
+		config.ioThreads = 1;
+		config.ioQueueSize = 1;
+		config.durabilityMode = DurabilityMode.FLAKE;
+		
+		snowpack = new Snowpack(root, config);
+		Map<Integer, ListenableFuture<Boolean>> accepted = new LinkedHashMap<Integer, ListenableFuture<Boolean>>();
+		int rejected = 0;
+		for(int index = 0; index < 200; index++) {
+			ListenableFuture<Boolean> save = snowpack.saveFlakeAsync("File-q-" + index, getFlakeData(String.valueOf(index)));
+			if(save.isDone()) {
+				try {
+					save.get();
+				} catch(ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+					rejected++;
+					continue;
+				}
+			}
+			
+			accepted.put(index, save);
+		}
+		Assert.assertTrue(rejected > 0);
+		
+		for(Entry<Integer, ListenableFuture<Boolean>> entry : accepted.entrySet()) {
+			Assert.assertTrue(entry.getValue().get());
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(entry.getKey())), snowpack.getFlake("File-q-" + entry.getKey()).getBytes());
+		}
+		snowpack.close();
+	}
+	
+	@Test
+	public void testBloomFilter() throws IOException {
+		File root = newDirectory();
+		File filterFile = new File(root, SnowpackConstants.SNOWPACK_BLOOM_FILTER_FILENAME);
+		
+		SnowpackMetadataDB db = new SnowpackMetadataDB(root, false, 0, 1, true, 10000, 0.01, false, false, 0);
+		for(int index = 0; index < 1000; index++) {
+			db.save(new FlakeMetadata("flake-" + index, 10, 1, index * 100, 30));
+		}
+		
+		int falsePositives = 0;
+		for(int index = 0; index < 1000; index++) {
+			Assert.assertTrue(db.has("flake-" + index));
+			if(db.has("missing-" + index)) {
+				falsePositives++;
+			}
+		}
+		Assert.assertTrue(falsePositives < 50);
+		db.close();
+		
+		// the filter saved on close is read back on open, and consumed
+		Assert.assertTrue(filterFile.exists());
+		db = new SnowpackMetadataDB(root, false, 0, 1, true, 10000, 0.01, false, false, 0);
+		Assert.assertFalse(filterFile.exists());
+		for(int index = 0; index < 1000; index++) {
+			Assert.assertNotNull(db.get("flake-" + index));
+		}
+		db.close();
+		
+		// negatives are answered by the filter alone - an empty one hides every flake
+		new FlakeBloomFilter(10000, 0.01).writeTo(filterFile);
+		db = new SnowpackMetadataDB(root, false, 0, 1, true, 10000, 0.01, false, false, 0);
+		Assert.assertFalse(db.has("flake-0"));
+		Assert.assertNull(db.get("flake-0"));
+		db.close();
+		
+		// without a saved filter, it is rebuilt from the database
+		FileUtils.forceDelete(filterFile);
+		db = new SnowpackMetadataDB(root, false, 0, 1, true, 10000, 0.01, false, false, 0);
+		for(int index = 0; index < 1000; index++) {
+			Assert.assertTrue(db.has("flake-" + index));
+		}
+		db.close();
+	}
+	
+	@Test
+	public void testDurabilityModes() throws IOException {
+		for(DurabilityMode mode : DurabilityMode.values()) {
+			for(boolean groupCommit : new boolean[] { false, true }) {
+				File root = newDirectory();
+				SnowpackConfig config = smallConfig();
+				config.durabilityMode = mode;
+				config.fsyncIntervalMillis = 1;
+				config.groupCommitEnabled = groupCommit;
+				
+				Snowpack snowpack = new Snowpack(root, config);
+				if(mode == DurabilityMode.PERIODIC) {
+					Assert.assertTrue(hasThread("snowpack-fsync-"));
+				}
+				
+				// chunks roll over while being forced in the background
+				writeFiles(snowpack, "d", 300);
+				Map<String, byte[]> flakes = new LinkedHashMap<String, byte[]>();
+				for(int index = 0; index < 100; index++) {
+					flakes.put("File-b-" + index, getFlakeData(String.valueOf(index)));
+				}
+				Assert.assertEquals(100, snowpack.saveFlakes(flakes));
+				snowpack.close();
+				
+				snowpack = new Snowpack(root, config);
+				for(int index = 0; index < 300; index++) {
+					Assert.assertArrayEquals(mode + " " + index, getFlakeData(String.valueOf(index)), snowpack.getFlake("File-d-" + index).getBytes());
+				}
+				for(int index = 0; index < 100; index++) {
+					Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-b-" + index).getBytes());
+				}
+				snowpack.close();
+			}
+		}
+	}
+	
+	private static boolean hasThread(String namePrefix) {
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith(namePrefix)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	@Test
+	public void testMultipleActiveWriters() throws Exception {
+		// round-robin across the writers
+		File root = newDirectory();
+		SnowpackConfig config = new SnowpackConfig();
+		config.maxFileSize = 1024 * 1024;
+		config.preAllocationChunkSize = 1024 * 1024;
+		config.activeWriters = 4;
+		
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "r", 400);
+		snowpack.close();
+		
+		SnowpackMetadataDB db = new SnowpackMetadataDB(root, config);
+		Set<Integer> chunks = new HashSet<Integer>();
+		for(int index = 0; index < 400; index++) {
+			chunks.add(db.get("File-r-" + index).chunk);
+		}
+		Assert.assertTrue(db.get("File-r-0").chunk != db.get("File-r-1").chunk);
+		db.close();
+		Assert.assertEquals(4, chunks.size());
+		
+		// each thread sticks to one writer
+		root = newDirectory();
+		config.writerThreadAffinity = true;
+		
+		final Snowpack affine = new Snowpack(root, config);
+		writeConcurrently(affine, 8, 100);
+		affine.close();
+		
+		db = new SnowpackMetadataDB(root, config);
+		for(int thread = 0; thread < 8; thread++) {
+			int chunk = db.get("File-t" + thread + "-0").chunk;
+			for(int index = 0; index < 100; index++) {
+				Assert.assertEquals(chunk, db.get("File-t" + thread + "-" + index).chunk);
+			}
+		}
+		db.close();
+		
+		// writers roll over on their own while being written to concurrently
+		root = newDirectory();
+		config = smallConfig();
+		config.activeWriters = 4;
+		
+		snowpack = new Snowpack(root, config);
+		writeConcurrently(snowpack, 8, 500);
+		snowpack.close();
+		
+		snowpack = new Snowpack(root, config);
+		for(int thread = 0; thread < 8; thread++) {
+			for(int index = 0; index < 500; index++) {
+				Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-t" + thread + "-" + index).getBytes());
+			}
+		}
+		snowpack.close();
+	}
+	
+	/**
+	 * Write flakes from multiple threads at the same time, each thread writing
+	 * flakes with its own prefix.
+	 * 
+	 */
+	private static void writeConcurrently(final Snowpack snowpack, int numThreads, final int numFlakes) throws InterruptedException {
+		final AtomicInteger failed = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int thread = 0; thread < numThreads; thread++) {
+			final String prefix = "t" + thread;
+			threads.add(new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					for(int index = 0; index < numFlakes; index++) {
+						if(!snowpack.saveFlake("File-" + prefix + "-" + index, getFlakeData(String.valueOf(index)))) {
+							failed.incrementAndGet();
+						}
+					}
+				}
+				
+			}));
+		}
+		
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		
+		Assert.assertEquals(0, failed.get());
+	}
+	
+	@Test
+	public void testBoundedWriteCache() throws IOException {
+		File root = newDirectory();
+		SnowpackConfig config = new SnowpackConfig();
+		config.maxFileSize = 1024 * 1024;
+		config.preAllocationChunkSize = 1024 * 1024;
+		config.maxBytesInWriteCache = 1024;
+		config.readCachingEnabled = false;
+		config.dedupEnabled = true;
+		
+		// all flakes stay in the active chunk, most of them only on disk
+		Snowpack snowpack = new Snowpack(root, config);
+		writeFiles(snowpack, "w", 2000);
+		for(int index = 0; index < 2000; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-w-" + index).getBytes());
+		}
+		
+		// an overwritten flake is read at its new location
+		snowpack.saveFlake("File-w-1999", getFlakeData("changed"));
+		Assert.assertArrayEquals(getFlakeData("changed"), snowpack.getFlake("File-w-1999").getBytes());
+		
+		// a cached record shared by another flake is returned under its name
+		byte[] shared = getCompressibleData(1);
+		snowpack.saveFlake("original", shared);
+		snowpack.saveFlake("copy", shared);
+		Flake flake = snowpack.getFlake("copy");
+		Assert.assertEquals("copy", flake.flakeName);
+		Assert.assertArrayEquals(shared, flake.getBytes());
+		Assert.assertEquals("original", snowpack.getFlake("original").flakeName);
+		snowpack.close();
+		
+		// the partial chunk is read from disk after a reopen
+		snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 1999; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-w-" + index).getBytes());
+		}
+		Assert.assertArrayEquals(getFlakeData("changed"), snowpack.getFlake("File-w-1999").getBytes());
+		Assert.assertArrayEquals(shared, snowpack.getFlake("copy").getBytes());
+		snowpack.close();
+	}
+	
+	@Test
+	public void testReadActiveChunkWithoutWriteCache() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.writeCachingEnabled = false;
+		config.readCachingEnabled = false;
+		
+		// every flake can be read right after it has been saved
+		final Snowpack snowpack = new Snowpack(root, config);
+		for(int index = 0; index < 500; index++) {
+			Assert.assertTrue(snowpack.saveFlake("File-a-" + index, getFlakeData(String.valueOf(index))));
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-a-" + index).getBytes());
+		}
+		
+		// also while other threads keep writing to the same chunk
+		final AtomicInteger failed = new AtomicInteger();
+		Thread reader = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					for(int index = 0; index < 500; index++) {
+						Flake flake = snowpack.getFlake("File-a-" + index);
+						if(flake == null || !Arrays.equals(getFlakeData(String.valueOf(index)), flake.getBytes())) {
+							failed.incrementAndGet();
+						}
+					}
+				} catch(IOException e) {
+					failed.incrementAndGet();
+				}
+			}
+			
+		});
+		reader.start();
+		writeConcurrently(snowpack, 4, 200);
+		reader.join();
+		Assert.assertEquals(0, failed.get());
+		
+		for(int thread = 0; thread < 4; thread++) {
+			for(int index = 0; index < 200; index++) {
+				Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("File-t" + thread + "-" + index).getBytes());
+			}
+		}
+		snowpack.close();
+	}
+	
+	@Test(timeout = 60000)
+	public void testStreamingSave() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.preCreateChunks = false;
+		
+		final Snowpack snowpack = new Snowpack(root, config);
+		byte[] large = getCompressibleData(3000);
+		Assert.assertTrue(snowpack.saveFlake("large", new ByteArrayInputStream(large), large.length));
+		Assert.assertArrayEquals(large, snowpack.getFlake("large").getBytes());
+		
+		// a stream shorter than promised leaves no flake behind
+		Assert.assertFalse(snowpack.saveFlake("short", new ByteArrayInputStream(large), large.length + 10));
+		Assert.assertNull(snowpack.getFlake("short"));
+		
+		// a non-blocking source is refused
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		try {
+			snowpack.saveFlake("non-blocking", pipe.source(), 10);
+			Assert.fail("Non-blocking source was accepted");
+		} catch(IllegalArgumentException e) {
+			// expected
+		} finally {
+			pipe.sink().close();
+			pipe.source().close();
+		}
+		
+		// a stalled upload does not hold up the seal of its chunk
+		final byte[] streamed = getFlakeData("streamed");
+		final Pipe upload = Pipe.open();
+		final AtomicInteger saved = new AtomicInteger();
+		Thread uploader = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				if(snowpack.saveFlake("streamed", upload.source(), streamed.length)) {
+					saved.incrementAndGet();
+				}
+			}
+			
+		});
+		uploader.start();
+		upload.sink().write(ByteBuffer.wrap(streamed, 0, 5));
+		
+		// the header is written once the space is reserved in the first chunk
+		File chunkFile = new File(root, SnowpackConstants.SNOWFLAKE_FILENAME_PREFIX + 0 + SnowpackConstants.SNOWFLAKE_FILENAME_SUFFIX);
+		while(!new String(FileUtils.readFileToByteArray(chunkFile), "ISO-8859-1").contains("\0\0\0\bstreamed")) {
+			Thread.sleep(10);
+		}
+		
+		writeFiles(snowpack, "s", 2000);
+		
+		upload.sink().write(ByteBuffer.wrap(streamed, 5, streamed.length - 5));
+		uploader.join();
+		upload.sink().close();
+		upload.source().close();
+		Assert.assertEquals(1, saved.get());
+		Assert.assertArrayEquals(streamed, snowpack.getFlake("streamed").getBytes());
+		snowpack.close();
+		
+		// the sealed chunk lists the flake in its footer once complete
+		boolean found = false;
+		for(ChunkFooter.Entry entry : ChunkFooter.read(chunkFile).entries) {
+			found |= entry.flakeName.equals("streamed");
+		}
+		Assert.assertTrue(found);
+		
+		// and recovery skips the incomplete record
+		SnowpackRecover.recover(root);
+		
+		Snowpack recovered = new Snowpack(root, config);
+		Assert.assertArrayEquals(large, recovered.getFlake("large").getBytes());
+		Assert.assertArrayEquals(streamed, recovered.getFlake("streamed").getBytes());
+		Assert.assertNull(recovered.getFlake("short"));
+		for(int index = 0; index < 2000; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), recovered.getFlake("File-s-" + index).getBytes());
+		}
+		recovered.close();
+	}
+	
+	@Test
+	public void testDedupReleasesPreviousVersion() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.dedupEnabled = true;
+		
+		final byte[] shared = getCompressibleData(1);
+		Snowpack snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("original", shared);
+		snowpack.saveFlake("copy", shared);
+		snowpack.close();
+		Assert.assertEquals(2, getReferenceCount(root, config, "original"));
+		
+		// overwritten by a bulk save
+		snowpack = new Snowpack(root, config);
+		snowpack.saveFlakes(Collections.singletonMap("copy", getFlakeData("bulk")));
+		snowpack.close();
+		Assert.assertEquals(1, getReferenceCount(root, config, "original"));
+		
+		// overwritten by data too small to be deduplicated
+		snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("copy", shared);
+		snowpack.saveFlake("copy", "small".getBytes());
+		snowpack.close();
+		Assert.assertEquals(1, getReferenceCount(root, config, "original"));
+		
+		// overwritten by a streaming save
+		snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("copy", shared);
+		byte[] streamed = getFlakeData("streamed");
+		snowpack.saveFlake("copy", new ByteArrayInputStream(streamed), streamed.length);
+		snowpack.close();
+		Assert.assertEquals(1, getReferenceCount(root, config, "original"));
+		
+		// concurrent saves of the same flake with different data
+		final Snowpack concurrent = new Snowpack(root, config);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int thread = 0; thread < 8; thread++) {
+			final byte[] unique = getCompressibleData(100 + thread);
+			threads.add(new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					for(int index = 0; index < 50; index++) {
+						concurrent.saveFlake("copy", index % 2 == 0 ? shared : unique);
+					}
+				}
+				
+			}));
+		}
+		for(Thread thread : threads) {
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		boolean copyShared = Arrays.equals(shared, concurrent.getFlake("copy").getBytes());
+		concurrent.close();
+		Assert.assertEquals(copyShared ? 2 : 1, getReferenceCount(root, config, "original"));
+		
+		snowpack = new Snowpack(root, config);
+		Assert.assertArrayEquals(shared, snowpack.getFlake("original").getBytes());
+		snowpack.close();
+	}
+	
+	/**
+	 * Return the number of flakes referring to the record of the given flake,
+	 * in a closed pack.
+	 * 
+	 */
+	private static int getReferenceCount(File root, SnowpackConfig config, String flakeName) {
+		SnowpackMetadataDB db = new SnowpackMetadataDB(root, config);
+		FlakeMetadata flakeMetadata = db.get(flakeName);
+		db.close();
+		
+		SnowpackDedupIndex dedupIndex = new SnowpackDedupIndex(root);
+		int count = dedupIndex.getReferenceCount(flakeMetadata.chunk, flakeMetadata.offset);
+		dedupIndex.close();
+		return count;
+	}
+	
+	@Test
+	public void testRecoverDedupIndex() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.dedupEnabled = true;
+		
+		byte[] shared = getCompressibleData(1);
+		Snowpack snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("original", shared);
+		snowpack.saveFlake("copy", shared);
+		snowpack.saveFlake("replaced", shared);
+		
+		// later copies refer to a record in an older chunk
+		writeFiles(snowpack, "a", 500);
+		snowpack.saveFlake("later", shared);
+		snowpack.saveFlake("replaced", getFlakeData("replaced"));
+		snowpack.close();
+		Assert.assertEquals(3, getReferenceCount(root, config, "original"));
+		
+		SnowpackRecover.recover(root);
+		Assert.assertEquals(3, getReferenceCount(root, config, "original"));
+		Assert.assertEquals(1, getReferenceCount(root, config, "File-a-0"));
+		
+		// new copies share the recovered record
+		snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("recovered", shared);
+		snowpack.saveFlake("copy", getFlakeData("copy"));
+		Assert.assertArrayEquals(shared, snowpack.getFlake("later").getBytes());
+		Assert.assertArrayEquals(shared, snowpack.getFlake("recovered").getBytes());
+		snowpack.close();
+		Assert.assertEquals(3, getReferenceCount(root, config, "original"));
+		Assert.assertEquals(3, getReferenceCount(root, config, "recovered"));
+	}
+	
+	@Test
+	public void testBulkSaveDedup() throws Exception {
+		File root = newDirectory();
+		SnowpackConfig config = smallConfig();
+		config.dedupEnabled = true;
+		config.maxBytesInSaveBatch = 8 * 1024;
+		
+		byte[] shared = getCompressibleData(1);
+		byte[] replaced = getCompressibleData(2);
+		Snowpack snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("original", shared);
+		snowpack.saveFlake("replaced", replaced);
+		
+		// copies within and across batches share the stored data, and a flake
+		// repeated in a batch keeps its last version
+		List<Entry<String, byte[]>> flakes = new ArrayList<Entry<String, byte[]>>();
+		flakes.add(new AbstractMap.SimpleEntry<String, byte[]>("copy-1", shared));
+		flakes.add(new AbstractMap.SimpleEntry<String, byte[]>("replaced", getCompressibleData(3)));
+		flakes.add(new AbstractMap.SimpleEntry<String, byte[]>("replaced", shared));
+		for(int index = 0; index < 100; index++) {
+			flakes.add(new AbstractMap.SimpleEntry<String, byte[]>("\u30d5\u30ec\u30fc\u30af-" + index, getFlakeData(String.valueOf(index))));
+		}
+		flakes.add(new AbstractMap.SimpleEntry<String, byte[]>("copy-2", shared));
+		Assert.assertEquals(flakes.size(), snowpack.saveFlakes(flakes.iterator()));
+		
+		Assert.assertArrayEquals(shared, snowpack.getFlake("copy-1").getBytes());
+		Assert.assertArrayEquals(shared, snowpack.getFlake("copy-2").getBytes());
+		Assert.assertArrayEquals(shared, snowpack.getFlake("replaced").getBytes());
+		for(int index = 0; index < 100; index++) {
+			Assert.assertArrayEquals(getFlakeData(String.valueOf(index)), snowpack.getFlake("\u30d5\u30ec\u30fc\u30af-" + index).getBytes());
+		}
+		snowpack.close();
+		
+		Assert.assertEquals(4, getReferenceCount(root, config, "original"));
+		
+		// the data of every replaced version was released
+		snowpack = new Snowpack(root, config);
+		snowpack.saveFlake("replaced", replaced);
+		snowpack.close();
+		Assert.assertEquals(1, getReferenceCount(root, config, "replaced"));
+		Assert.assertEquals(3, getReferenceCount(root, config, "original"));
+	}
+	
+	@Test
+	public void testOffHeapIndexLimit() throws IOException {
+		File root = newDirectory();
+		OffHeapMetadataIndex index = new OffHeapMetadataIndex(root, 100, 1000, false);
+		index.save(new FlakeMetadata("flake", 10, 1, 1000l, 20));
+		index.close();
+		Assert.assertTrue(OffHeapMetadataIndex.getMaxFlakes(root) >= 1000);
+		
+		// the index cannot grow past the limit it was created with
+		try {
+			new OffHeapMetadataIndex(root, 100, 1l << 30, false);
+			Assert.fail("Index was opened with a larger limit");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		
+		File larger = newDirectory();
+		new OffHeapMetadataIndex(larger, 100, 1l << 30, false).close();
+		Assert.assertTrue(OffHeapMetadataIndex.getMaxFlakes(larger) >= 1l << 30);
+		
+		// an update cut short leaves the old entry ahead of the new one
+		File directory = new File(root, SnowpackConstants.SNOWPACK_METADATA_INDEX_DIRECTORY);
+		boolean copied = false;
+		for(File segment : directory.listFiles()) {
+			RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+			try {
+				int capacity = (int) ((raf.length() - 16) / 40);
+				for(int slot = 0; slot < capacity && !copied; slot++) {
+					raf.seek(16 + slot * 40 + 36);
+					if(raf.readInt() != 1) {
+						continue;
+					}
+					
+					byte[] entry = new byte[40];
+					raf.seek(16 + slot * 40);
+					raf.readFully(entry);
+					ByteBuffer.wrap(entry).putLong(16, 2000l);
+					
+					raf.seek(16 + ((slot + 1) % capacity) * 40);
+					raf.write(entry);
+					copied = true;
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		Assert.assertTrue(copied);
+		
+		index = new OffHeapMetadataIndex(root, 100, 1000, false);
+		Assert.assertEquals(1, index.size());
+		Assert.assertEquals(2000l, index.get("flake").offset);
+		index.close();
+	}
+	
+	/**
+	 * Create a new empty directory for a pack.
+	 * 
+	 * @return
+	 */
+	private File newDirectory() {
+		File directory = Files.createTempDir();
+		this.directories.add(directory);
+		return directory;
+	}
+	
+	/**
+	 * A configuration with small chunks, so that a few thousand flakes span
+	 * several chunks.
+	 * 
+	 * @return
+	 */
+	private static SnowpackConfig smallConfig() {
+		SnowpackConfig config = new SnowpackConfig();
+		config.maxFileSize = 64 * 1024;
+		config.preAllocationChunkSize = 64 * 1024;
+		config.averageExpectedSize = 1024;
+		return config;
+	}
 
 	/**
 	 * @param args
@@ -120,4 +1426,25 @@ public class SnowpackTest {
 		}
 		return builder.toString().getBytes();
 	}
+	
+	private static byte[] getCompressibleData(int index) {
+		StringBuilder builder = new StringBuilder();
+		for(int i = 0; i < 200; i++) {
+			builder.append("flake-").append(index).append(';');
+		}
+		return builder.toString().getBytes();
+	}
+	
+	/**
+	 * A codec that is only known to the configuration it is set in.
+	 * 
+	 */
+	private static class CustomCodec extends DeflateCodec {
+		
+		@Override
+		public byte getID() {
+			return 42;
+		}
+		
+	}
 }